@@ -0,0 +1,32 @@
+package ParserCombinator;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of the ParserCombinator package with JMH, from the project directory.
+ * Each benchmark reports its throughput in operations per second, and the gc profiler reports how much it allocates
+ * (gc.alloc.rate.norm is the number of bytes allocated per operation), so that regressions in either are caught.
+ *
+ * Any arguments are passed to JMH. For example, "CorpusBenchmark -p depth=16" only runs the deepest generated code.
+ *
+ * @author Max Kopinsky
+ */
+public final class Benchmarks {
+    private Benchmarks() {}
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLine);
+        if (commandLine.getIncludes().isEmpty()) {
+            options.include(Benchmarks.class.getPackage().getName() + "\\..*Benchmark");
+        }
+        options.addProfiler(GCProfiler.class);
+        new Runner(options.build()).run();
+    }
+}
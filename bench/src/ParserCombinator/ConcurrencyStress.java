@@ -0,0 +1,127 @@
+package ParserCombinator;
+
+import Lithp.LithpValue;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Stress test for sharing one ParserCombinator between threads. For each way of building and running a grammar
+ * (interpreted or compiled, with or without packrat parsing, building ParseTrees or applying semantic actions),
+ * many threads parse distinct inputs on a single shared ParserCombinator at once, and every result is checked
+ * against the result of parsing the same input on one thread. Some of the inputs do not parse, so that failures
+ * are checked too. The time taken with one thread and with all of them is reported, to show how throughput scales.
+ *
+ * Run it from the project directory. The arguments are the number of threads, which defaults to the number of
+ * processors, and the number of times each thread parses every input, which defaults to 1.
+ * It exits with status 1 if any result differs.
+ *
+ * @author Max Kopinsky
+ */
+public final class ConcurrencyStress {
+    /** The number of distinct inputs. */
+    private static final int INPUTS = 16;
+
+    private ConcurrencyStress() {}
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < INPUTS; i++) {
+            String code = LithpCorpus.generate(20 + 5 * i, 1 + i % 6);
+            // every sixth input is left unclosed, so that it fails
+            inputs.add(i % 6 == 5 ? code.substring(0, code.lastIndexOf(')')) : code);
+        }
+
+        long mismatches = 0;
+        for (boolean compiled : new boolean[] {false, true}) {
+            for (boolean packrat : new boolean[] {false, true}) {
+                for (boolean actions : new boolean[] {false, true}) {
+                    ParserCombinator lithp = compiled
+                            ? ParserCombinator.compile(LithpValue.GRAMMAR)
+                            : new ParserCombinator(LithpValue.GRAMMAR);
+                    lithp.setPackrat(packrat);
+                    if (actions) {
+                        LithpValue.addReadActions(lithp);
+                    }
+                    List<String> expected = new ArrayList<>();
+                    long start = System.nanoTime();
+                    for (String input : inputs) {
+                        expected.add(parse(lithp, input, actions));
+                    }
+                    long single = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    long bad = stress(lithp, inputs, expected, actions, threads, rounds);
+                    long shared = System.nanoTime() - start;
+                    mismatches += bad;
+                    // each thread parses every input rounds times, so the ideal time is rounds times the single run
+                    System.out.printf("%-11s %-7s %-7s %2d threads: %5.2fx the work in %5.2fx the time, %d mismatches%n",
+                            compiled ? "compiled" : "interpreted", packrat ? "packrat" : "plain",
+                            actions ? "actions" : "trees", threads,
+                            (double) threads * rounds, (double) shared / single, bad);
+                }
+            }
+        }
+        if (mismatches > 0) {
+            System.out.println(mismatches + " results differed from a single-threaded run.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Parses every input on many threads at once, each starting at a different input.
+     *
+     * @return The number of results that differ from the expected ones.
+     */
+    private static long stress(ParserCombinator lithp, List<String> inputs, List<String> expected,
+                               boolean actions, int threads, int rounds)
+            throws InterruptedException, ExecutionException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Long>> tasks = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                int offset = thread * inputs.size() / threads;
+                tasks.add(() -> {
+                    long bad = 0;
+                    for (int round = 0; round < rounds; round++) {
+                        for (int i = 0; i < inputs.size(); i++) {
+                            int input = (offset + i) % inputs.size();
+                            if (!parse(lithp, inputs.get(input), actions).equals(expected.get(input))) {
+                                bad++;
+                            }
+                        }
+                    }
+                    return bad;
+                });
+            }
+            long bad = 0;
+            for (Future<Long> result : pool.invokeAll(tasks)) {
+                bad += result.get();
+            }
+            return bad;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Parses an input, and describes the result so that results of different runs can be compared. */
+    private static String parse(ParserCombinator lithp, String input, boolean actions) {
+        if (!actions) {
+            ParseTree tree = lithp.run(input);
+            return tree.assertSuccess() + " " + tree;
+        }
+        try {
+            return lithp.runActions(input).toString();
+        } catch (ParseException e) {
+            return e.getErrorOffset() + ": " + e.getMessage();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ParserCombinator;
+
+import Lithp.LithpValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks parsing generated Lithp code of increasing size and nesting depth with run().
+ * Every form is parsed into the ParseTree, so these cover Stream, Result and ParseTree together.
+ * See Benchmarks for how to run them.
+ *
+ * @author Max Kopinsky
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CorpusBenchmark {
+    /** The number of forms in the generated code. */
+    @Param({"100", "1000", "10000"})
+    public int forms;
+
+    /** How deeply each form is nested. */
+    @Param({"1", "4", "16"})
+    public int depth;
+
+    private ParserCombinator lithp;
+    private ParserCombinator packrat;
+    private String code;
+
+    @Setup
+    public void setUp() {
+        lithp = new ParserCombinator(LithpValue.GRAMMAR);
+        packrat = new ParserCombinator(LithpValue.GRAMMAR);
+        packrat.setPackrat(true);
+        code = LithpCorpus.generate(forms, depth);
+        if (!lithp.run(code).assertSuccess()) {
+            throw new IllegalStateException("The generated code does not parse.");
+        }
+    }
+
+    /** Parses the code into a ParseTree. */
+    @Benchmark
+    public ParseTree run() {
+        return lithp.run(code);
+    }
+
+    /** Parses the code into a ParseTree in packrat mode. */
+    @Benchmark
+    public ParseTree runPackrat() {
+        return packrat.run(code);
+    }
+}
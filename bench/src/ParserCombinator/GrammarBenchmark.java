@@ -0,0 +1,71 @@
+package ParserCombinator;
+
+import Lithp.LithpValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks building Parsers from grammars, and parsing the standard library with the Lithp grammar.
+ * See Benchmarks for how to run them.
+ *
+ * @author Max Kopinsky
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GrammarBenchmark {
+    /** The standard library, relative to the project directory that the benchmarks are run from. */
+    private static final String STANDARD_LIBRARY = "src/StandardLibrary.lthp";
+
+    private ParserCombinator lithp;
+    private String library;
+
+    @Setup
+    public void setUp() throws IOException {
+        lithp = new ParserCombinator(LithpValue.GRAMMAR);
+        library = LithpCorpus.standardLibrary(Paths.get(STANDARD_LIBRARY));
+        for (Iterator<ParseTree> forms = lithp.runAll(new StringReader(library)); forms.hasNext(); ) {
+            if (!forms.next().assertSuccess()) {
+                throw new IllegalStateException("The standard library does not parse.");
+            }
+        }
+    }
+
+    /** Parses the Lithp grammar and builds its combinators. */
+    @Benchmark
+    public ParserCombinator construct() {
+        return new ParserCombinator(LithpValue.GRAMMAR);
+    }
+
+    /** Builds the Parser that grammars are parsed with. */
+    @Benchmark
+    public Parser bnfParser() {
+        return Combinators.getBNFParser();
+    }
+
+    /** Parses each form of the standard library into a ParseTree. */
+    @Benchmark
+    public void standardLibrary(Blackhole hole) {
+        for (Iterator<ParseTree> forms = lithp.runAll(new StringReader(library)); forms.hasNext(); ) {
+            hole.consume(forms.next());
+        }
+    }
+}
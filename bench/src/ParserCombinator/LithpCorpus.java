@@ -0,0 +1,130 @@
+package ParserCombinator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Generates Lithp code for the benchmarks, and reads the standard library.
+ * Generated code is the same for the same size and depth, so every run of a benchmark parses the same input.
+ *
+ * @author Max Kopinsky
+ */
+final class LithpCorpus {
+    /** Symbols that generated forms are built from. */
+    private static final String[] SYMBOLS = {
+            "def", "lambda", "if", "let", "head", "tail", "join", "list", "eval", "len",
+            "+", "-", "*", "/", "eq?", "not", "and", "or", "x", "y", "xs", "acc", "f", "g"
+    };
+
+    private LithpCorpus() {}
+
+    /**
+     * Generates a single Lithp expression, a quoted list of the given number of forms,
+     * each nested to the given depth. Forms mix s-expressions, q-expressions, numbers, symbols and comments
+     * in roughly the proportions of hand-written code.
+     *
+     * @param forms The number of forms in the list.
+     * @param depth How deeply each form is nested. Forms of depth 0 are atoms.
+     * @return The code.
+     */
+    static String generate(int forms, int depth) {
+        Random random = new Random(31L * forms + depth);
+        StringBuilder code = new StringBuilder("'(\n");
+        StringBuilder form = new StringBuilder();
+        for (int i = 0; i < forms; i++) {
+            form.setLength(0);
+            form(form, depth, random);
+            // the grammar only allows comments before s-expressions
+            if (form.charAt(0) == '(' && random.nextInt(8) == 0) {
+                code.append("; form ").append(i).append('\n');
+            }
+            code.append(form).append('\n');
+        }
+        return code.append(")\n").toString();
+    }
+
+    /**
+     * Generates a single Lithp expression holding many small lists side by side, nested inside of the given number
+     * of lists, such as "((x0) (x1) (x2))" for a depth of 1 and 3 items.
+     *
+     * @param depth The number of lists around the items.
+     * @param items The number of items.
+     * @return The code.
+     */
+    static String siblings(int depth, int items) {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            code.append('(');
+        }
+        for (int i = 0; i < items; i++) {
+            code.append("(x").append(i).append(") ");
+        }
+        for (int i = 0; i < depth; i++) {
+            code.append(')');
+        }
+        return code.append('\n').toString();
+    }
+
+    /**
+     * Appends a form to the code. One child of each list is nested to the full depth, and the others are shallower,
+     * so the size of a form grows linearly with its depth.
+     */
+    private static void form(StringBuilder code, int depth, Random random) {
+        if (depth == 0) {
+            if (random.nextInt(3) == 0) {
+                code.append(random.nextInt(2000) - 1000);
+            } else {
+                code.append(SYMBOLS[random.nextInt(SYMBOLS.length)]);
+            }
+            return;
+        }
+        code.append(random.nextInt(4) == 0 ? "'(" : "(").append(SYMBOLS[random.nextInt(SYMBOLS.length)]);
+        int deep = random.nextInt(3);
+        for (int i = 0; i < 3; i++) {
+            code.append(' ');
+            form(code, i == deep ? depth - 1 : random.nextInt(Math.min(depth, 2)), random);
+        }
+        code.append(')');
+    }
+
+    /**
+     * Reads the standard library, closing any forms left open at its end as the REPL closes unbalanced input.
+     *
+     * @param file The standard library.
+     * @return The code of the standard library, without a byte order mark.
+     * @throws IOException if the file cannot be read.
+     */
+    static String standardLibrary(Path file) throws IOException {
+        String code = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        if (code.startsWith("\uFEFF")) {
+            code = code.substring(1);
+        }
+        StringBuilder closed = new StringBuilder(code);
+        for (int open = missingParens(code); open > 0; open--) {
+            closed.append(')');
+        }
+        return closed.append('\n').toString();
+    }
+
+    /** Counts the parentheses opened and not closed in some code, skipping comments. */
+    private static int missingParens(String code) {
+        int open = 0;
+        boolean comment = false;
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (comment) {
+                comment = c != '\n';
+            } else if (c == ';') {
+                comment = true;
+            } else if (c == '(') {
+                open++;
+            } else if (c == ')') {
+                open--;
+            }
+        }
+        return open;
+    }
+}
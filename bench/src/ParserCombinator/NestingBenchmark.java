@@ -0,0 +1,59 @@
+package ParserCombinator;
+
+import Lithp.LithpValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks parsing many small lists side by side at different depths of nesting.
+ * Deep nesting is parsed in segments on other threads (see ParseContext.nest()), and at depths 14 and 15 of the
+ * Lithp grammar the items sit just past the end of the first segment, so each of them is handed to another thread.
+ * Those depths should stay within a small factor of the others.
+ * See Benchmarks for how to run them.
+ *
+ * @author Max Kopinsky
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NestingBenchmark {
+    /** The number of lists around the items. */
+    @Param({"1", "12", "14", "15", "16"})
+    public int depth;
+
+    /** The number of items. */
+    @Param({"20000"})
+    public int items;
+
+    private ParserCombinator lithp;
+    private String code;
+
+    @Setup
+    public void setUp() {
+        lithp = new ParserCombinator(LithpValue.GRAMMAR);
+        code = LithpCorpus.siblings(depth, items);
+        if (!lithp.run(code).assertSuccess()) {
+            throw new IllegalStateException("The generated code does not parse.");
+        }
+    }
+
+    /** Parses the code into a ParseTree. */
+    @Benchmark
+    public ParseTree run() {
+        return lithp.run(code);
+    }
+}
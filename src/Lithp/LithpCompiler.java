@@ -0,0 +1,261 @@
+package Lithp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Analyzes Lithp forms into trees of LithpNodes, once, so that the evaluator only runs them.
+ * The body of a lambda is compiled when the lambda is created, and every call runs the same tree.
+ *
+ * The special forms if, def, let, let-values and lambda are recognized when their code is compiled, if their name is not
+ * bound by the code being compiled or in the global environment at that time. Any other S-expression,
+ * and any special form whose arguments do not have the usual shape, is compiled to a call that evaluates its head
+ * when it runs, so macros bound at runtime and the errors of malformed forms behave as before.
+ *
+ * Scope is lexical. Each variable bound by a lambda, as a formal or by a let in its body, gets a slot of the
+ * lambda's frame, and each reference to it is compiled to its address: how many frames out it is, and its slot.
+ * A let binds its symbol for its value and its body; the value can only refer to the symbol from inside a lambda,
+ * so that a let can bind a recursive function. Variables bound by no lambda are looked up in the global environment.
+ */
+final class LithpCompiler {
+    private final LithpEvaluator evaluator;
+    private final LithpEnv globalEnv;
+
+    LithpCompiler(LithpEvaluator evaluator, LithpEnv globalEnv) {
+        this.evaluator = evaluator;
+        this.globalEnv = globalEnv;
+    }
+
+    /**
+     * The variables in scope of a frame, while code that runs in it is compiled.
+     * A frame either belongs to a lambda being compiled, or to an environment that exists already,
+     * when code is compiled to run in it, such as the argument of eval.
+     */
+    private static final class Scope {
+        private final Scope parent;
+        /** The environment of the frame, or null if it belongs to a lambda being compiled */
+        private final LithpEnv env;
+        /** The name of each slot of a lambda's frame */
+        private final List<LithpSymbol> names = new ArrayList<>();
+        /** The slots in scope at the point being compiled, innermost last */
+        private final List<Integer> visible = new ArrayList<>();
+        /** The slots of lets whose values are being compiled, which only lambdas in the values can refer to */
+        private final Set<Integer> pending = new HashSet<>();
+        /** The names the code being compiled binds by name in an existing environment */
+        private final Set<LithpSymbol> named = new HashSet<>();
+
+        Scope(Scope parent, LithpEnv env) {
+            this.parent = parent;
+            this.env = env;
+        }
+
+        /** Gives a lambda's frame a new slot, in scope from now on. */
+        int add(LithpSymbol name) {
+            int slot = names.size();
+            names.add(name);
+            visible.add(slot);
+            return slot;
+        }
+    }
+
+    /**
+     * Compiles a form.
+     * @param form The form, which is not modified.
+     * @param env The environment the form will run in.
+     * @return The node tree of the form.
+     */
+    LithpNode compile(LithpValue form, LithpEnv env) {
+        return compile(form, scopeOf(env));
+    }
+
+    /**
+     * Compiles a lambda.
+     * @param creator The environment the lambda is created in.
+     * @param formals The formal arguments of the lambda, all symbols.
+     * @param body The body of the lambda, as an S-expression.
+     * @return The compiled lambda.
+     */
+    LithpNode.Lambda compileLambda(LithpEnv creator, LithpValue formals, LithpValue body) {
+        return compileLambda(formals, body, scopeOf(creator));
+    }
+
+    /** The scope of the frames of an environment, or null for the global environment. */
+    private Scope scopeOf(LithpEnv env) {
+        if (env == null || env == globalEnv) return null;
+        return new Scope(scopeOf(env.getParent()), env);
+    }
+
+    /**
+     * Compiles a form.
+     * @param form The form.
+     * @param scope The scope of the frame the form runs in, or null if it runs in the global environment.
+     * @return The node tree of the form.
+     */
+    private LithpNode compile(LithpValue form, Scope scope) {
+        switch (form.getType()) {
+            case SYM:
+                return reference(form, scope);
+            case S_EXPR:
+                if (form.getCount() > 0) {
+                    return compileSexpr(form, scope);
+                }
+                // the empty S-expression evaluates to itself
+                return new LithpNode.Constant(form);
+            default:
+                return new LithpNode.Constant(form);
+        }
+    }
+
+    private LithpNode compileSexpr(LithpValue form, Scope scope) {
+        List<LithpValue> cells = form.getCells();
+        LithpValue head = cells.get(0);
+        if (head.getType() == LithpValue.Type.SYM && isSpecial(head, scope)) {
+            switch (head.getSym()) {
+                case "if":
+                    if (cells.size() == 4) {
+                        return new LithpNode.If(compile(cells.get(1), scope),
+                                compile(cells.get(2), scope), compile(cells.get(3), scope));
+                    }
+                    break;
+                case "def":
+                    if (cells.size() == 3 && cells.get(1).getType() == LithpValue.Type.SYM) {
+                        return new LithpNode.Def(cells.get(1), compile(cells.get(2), scope));
+                    }
+                    break;
+                case "let":
+                    if (cells.size() == 4 && cells.get(1).getType() == LithpValue.Type.SYM) {
+                        return compileLet(cells.get(1), cells.get(2), cells.get(3), scope);
+                    }
+                    break;
+                case "let-values":
+                    if (cells.size() == 4 && isLetValues(cells.get(1), cells.get(2))) {
+                        return compileLetValues(cells.get(1), cells.get(2), cells.get(3), scope);
+                    }
+                    break;
+                case "lambda":
+                    if (cells.size() == 3 && isLambda(cells.get(1), cells.get(2))) {
+                        return compileLambda(cells.get(1), cells.get(2).slice(LithpValue.Type.S_EXPR, 0), scope);
+                    }
+                    break;
+            }
+        }
+        LithpNode[] args = new LithpNode[cells.size() - 1];
+        for (int i = 1; i < cells.size(); i++) {
+            args[i - 1] = compile(cells.get(i), scope);
+        }
+        return new LithpNode.Call(evaluator, compile(head, scope), args,
+                Collections.unmodifiableList(new ArrayList<>(cells.subList(1, cells.size()))));
+    }
+
+    private LithpNode compileLet(LithpValue sym, LithpValue value, LithpValue body, Scope scope) {
+        if (scope == null || scope.env != null) {
+            boolean added = scope != null && scope.named.add(sym.getSymbol());
+            LithpNode let = new LithpNode.Let(sym, -1, compile(value, scope), compile(body, scope));
+            if (added) {
+                scope.named.remove(sym.getSymbol());
+            }
+            return let;
+        }
+        int slot = scope.add(sym.getSymbol());
+        scope.pending.add(slot);
+        LithpNode valueNode = compile(value, scope);
+        scope.pending.remove(slot);
+        LithpNode bodyNode = compile(body, scope);
+        scope.visible.remove(scope.visible.size() - 1);
+        return new LithpNode.Let(sym, slot, valueNode, bodyNode);
+    }
+
+    private LithpNode compileLetValues(LithpValue syms, LithpValue values, LithpValue body, Scope scope) {
+        int count = syms.getCount();
+        LithpValue[] symArray = syms.getCells().toArray(new LithpValue[0]);
+        int[] slots = new int[count];
+        LithpNode[] valueNodes = new LithpNode[count];
+        Set<LithpSymbol> added = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            LithpSymbol name = symArray[i].getSymbol();
+            if (scope == null || scope.env != null) {
+                slots[i] = -1;
+                valueNodes[i] = compile(values.get(i), scope);
+                if (scope != null && scope.named.add(name)) {
+                    added.add(name);
+                }
+            } else {
+                slots[i] = scope.add(name);
+                scope.pending.add(slots[i]);
+                valueNodes[i] = compile(values.get(i), scope);
+                scope.pending.remove(slots[i]);
+            }
+        }
+        LithpNode bodyNode = compile(body, scope);
+        if (scope != null) {
+            scope.named.removeAll(added);
+            if (scope.env == null) {
+                scope.visible.subList(scope.visible.size() - count, scope.visible.size()).clear();
+            }
+        }
+        return new LithpNode.LetValues(symArray, slots, valueNodes, bodyNode);
+    }
+
+    private LithpNode.Lambda compileLambda(LithpValue formals, LithpValue body, Scope scope) {
+        Scope frame = new Scope(scope, null);
+        int[] slots = new int[formals.getCount()];
+        for (int i = 0; i < slots.length; i++) {
+            LithpSymbol name = formals.get(i).getSymbol();
+            slots[i] = name == LithpSymbol.REST ? -1 : frame.add(name);
+        }
+        LithpNode code = compile(body, frame);
+        return new LithpNode.Lambda(formals, body, frame.names.toArray(new LithpSymbol[0]), slots, code);
+    }
+
+    /** Compiles a reference to a variable, to the innermost binding of it that is in scope. */
+    private LithpNode reference(LithpValue sym, Scope scope) {
+        LithpSymbol name = sym.getSymbol();
+        int depth = 0;
+        for (Scope frame = scope; frame != null; frame = frame.parent, depth++) {
+            if (frame.env == null) {
+                for (int i = frame.visible.size() - 1; i >= 0; i--) {
+                    int slot = frame.visible.get(i);
+                    if (frame.names.get(slot) == name && (depth > 0 || !frame.pending.contains(slot))) {
+                        return new LithpNode.Local(sym, depth, slot);
+                    }
+                }
+            } else {
+                if (frame.named.contains(name) || frame.env.bindsByName(name)) {
+                    return new LithpNode.Ref(sym);
+                }
+                int slot = frame.env.slot(name);
+                if (slot >= 0) {
+                    return new LithpNode.Local(sym, depth, slot);
+                }
+            }
+        }
+        return new LithpNode.Global(sym, globalEnv);
+    }
+
+    /** Whether a symbol at the head of an S-expression still names a builtin special form. */
+    private boolean isSpecial(LithpValue sym, Scope scope) {
+        return reference(sym, scope) instanceof LithpNode.Global && !globalEnv.contains(sym);
+    }
+
+    /** Whether the arguments of a let-values are a list of symbols and a list of as many values. */
+    private static boolean isLetValues(LithpValue syms, LithpValue values) {
+        return syms.getType() == LithpValue.Type.Q_EXPR && values.getType() == LithpValue.Type.Q_EXPR
+                && syms.getCount() == values.getCount() && allSymbols(syms);
+    }
+
+    /** Whether the arguments of a lambda are a list of symbols and a list. */
+    private static boolean isLambda(LithpValue formals, LithpValue body) {
+        return formals.getType() == LithpValue.Type.Q_EXPR && body.getType() == LithpValue.Type.Q_EXPR
+                && allSymbols(formals);
+    }
+
+    private static boolean allSymbols(LithpValue list) {
+        for (LithpValue cell : list) {
+            if (cell.getType() != LithpValue.Type.SYM) return false;
+        }
+        return true;
+    }
+}
@@ -4,38 +4,123 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.function.BiFunction;
 
+/**
+ * An environment of Lithp variables. The global and builtin environments bind variables by name.
+ * Each call of a lambda gets a frame instead: an array with a slot for each formal argument and let of the lambda,
+ * whose variables compiled code addresses by position (see LithpCompiler). A frame's parent is the environment
+ * the lambda was created in, so lambdas close over the variables around them.
+ */
 class LithpEnv {
     private LithpEnv parent;
-    private Map<String, LithpValue> vars;
+    /** Variables bound by name: all of them in the global and builtin environments, and in a frame,
+     *  those bound at runtime by code that was not compiled with the frame, if it has no slot for them */
+    private Map<LithpSymbol, LithpValue> vars;
+    /** The variables of a frame, or null for an environment that binds variables by name */
+    private final LithpValue[] slots;
+    /** The name of each slot of a frame */
+    private final LithpSymbol[] names;
 
     LithpEnv() {
         vars = new HashMap<>();
+        slots = null;
+        names = null;
     }
-    LithpEnv(LithpEnv e) {
-        parent = e.parent;
-        vars = new HashMap<>(e.vars);
+    /**
+     * Creates a frame whose slots are all unbound.
+     * @param parent The environment the frame's lambda was created in.
+     * @param names The name of each slot.
+     */
+    LithpEnv(LithpEnv parent, LithpSymbol[] names) {
+        this.parent = parent;
+        this.names = names;
+        slots = new LithpValue[names.length];
+    }
+    /**
+     * Copies a frame, so that binding the copy does not change the original.
+     * @param frame The frame to copy.
+     */
+    LithpEnv(LithpEnv frame) {
+        parent = frame.parent;
+        names = frame.names;
+        slots = frame.slots.clone();
+        if (frame.vars != null) {
+            vars = new HashMap<>(frame.vars);
+        }
     }
 
     void setParent(LithpEnv e) {
         parent = e;
     }
 
-    @Override
-    public boolean equals(Object obj) {
-        if (!(obj instanceof LithpEnv)) return false;
-        LithpEnv env = (LithpEnv) obj;
-        return (parent.equals(env.parent)) && (vars.equals(env.vars));
+    LithpEnv getParent() {
+        return parent;
     }
 
     LithpValue get(LithpValue key) {
-        LithpValue ret = vars.get(key.getSym());
-        if (ret != null) return ret;
-        else if (parent != null) return parent.get(key);
-        else return LithpValue.err("Unbound Symbol: " + key.getSym() + ".");
+        LithpSymbol name = key.getSymbol();
+        for (LithpEnv env = this; env != null; env = env.parent) {
+            int slot = env.slot(name);
+            if (slot >= 0 && env.slots[slot] != null) return env.slots[slot];
+            if (env.vars != null) {
+                LithpValue ret = env.vars.get(name);
+                if (ret != null) return ret;
+            }
+        }
+        return LithpValue.err("Unbound Symbol: " + key.getSym() + ".");
     }
 
     void put(LithpValue key, LithpValue value) {
-        vars.put(key.getSym(), value);
+        int slot = slot(key.getSymbol());
+        if (slot >= 0) {
+            slots[slot] = value;
+            return;
+        }
+        if (vars == null) {
+            vars = new HashMap<>();
+        }
+        vars.put(key.getSymbol(), value);
+    }
+
+    /**
+     * Gets a variable of a frame by its lexical address.
+     * @param depth How many environments out from this one the frame is.
+     * @param slot The slot of the variable in the frame.
+     * @return The value of the variable, or null if it is not bound yet.
+     */
+    LithpValue getLocal(int depth, int slot) {
+        LithpEnv env = this;
+        for (int i = 0; i < depth; i++) {
+            env = env.parent;
+        }
+        return env.slots[slot];
+    }
+
+    /**
+     * Binds a variable of this frame.
+     * @param slot The slot of the variable.
+     * @param value The value to bind.
+     */
+    void setLocal(int slot, LithpValue value) {
+        slots[slot] = value;
+    }
+
+    /**
+     * Finds the slot of this frame with the given name. If several slots have the name, the last one is found,
+     * since later slots belong to lets inside the lambda.
+     * @param name The name.
+     * @return The slot, or -1 if this is not a frame or it has no slot with the name.
+     */
+    int slot(LithpSymbol name) {
+        if (names == null) return -1;
+        for (int i = names.length - 1; i >= 0; i--) {
+            if (names[i] == name) return i;
+        }
+        return -1;
+    }
+
+    /** Whether this environment binds a name without a slot. */
+    boolean bindsByName(LithpSymbol name) {
+        return vars != null && vars.containsKey(name);
     }
 
     void def(LithpValue key, LithpValue value) {
@@ -47,22 +132,23 @@ class LithpEnv {
     }
 
     boolean contains(LithpValue key) {
-        return vars.containsKey(key.getSym());
+        int slot = slot(key.getSymbol());
+        return (slot >= 0 && slots[slot] != null) || bindsByName(key.getSymbol());
     }
 
     private void addBuiltin(String name, BiFunction<LithpEnv, LithpValue, LithpValue> func) {
-        vars.put(name, LithpValue.func(name, func));
+        vars.put(LithpSymbol.intern(name), LithpValue.func(name, func));
     }
     private void addBuiltinMacro(String name, BiFunction<LithpEnv, LithpValue, LithpValue> macro) {
-        vars.put(name, LithpValue.macro(name, macro));
+        vars.put(LithpSymbol.intern(name), LithpValue.macro(name, macro));
     }
 
     void loadBuiltins(LithpEvaluator evaluator) {
         /* builtin values for convenience*/
-        vars.put("nil", LithpValue.NIL);
-        vars.put("#t", LithpValue.TRUE);
-        vars.put("#f", LithpValue.FALSE);
-        vars.put("#<void>", LithpValue.VOID);
+        vars.put(LithpSymbol.intern("nil"), LithpValue.NIL);
+        vars.put(LithpSymbol.intern("#t"), LithpValue.TRUE);
+        vars.put(LithpSymbol.intern("#f"), LithpValue.FALSE);
+        vars.put(LithpSymbol.intern("#<void>"), LithpValue.VOID);
 
         /* Builtin macros */
         addBuiltinMacro("if", evaluator::builtinIf);
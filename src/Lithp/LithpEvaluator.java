@@ -7,6 +7,8 @@ import java.util.List;
 public class LithpEvaluator {
     /** The scratch environment for running code */
     private LithpEnv globalEnv;
+    /** Compiles forms and lambda bodies to node trees before they are run */
+    private LithpCompiler compiler;
 
     public LithpEvaluator() {
         /* Stores all the builtin behaviors and values */
@@ -14,48 +16,30 @@ public class LithpEvaluator {
         globalEnv = new LithpEnv();
         builtinEnv.loadBuiltins(this);
         globalEnv.setParent(builtinEnv);
+        compiler = new LithpCompiler(this, globalEnv);
     }
 
     public int eval(ParseTree AST) {
-        LithpValue result = eval(globalEnv, LithpValue.read(AST.getRoot().getChild()));
+        return eval(LithpValue.read(AST.getRoot().getChild()));
+    }
+
+    public int eval(LithpValue form) {
+        LithpValue result = eval(globalEnv, form);
         if (result.getType() == LithpValue.Type.ERR && result.getErr().equals("exit")) return -1;
         System.out.println(result);
         return 0;
     }
 
-    private LithpValue evalSexpr(LithpEnv env, LithpValue value) {
-        List<LithpValue> cells = value.getCells();
-        if (cells.size() == 0) return value;
-        LithpValue macroCheck = eval(env, cells.get(0));
-        if (macroCheck.getType() == LithpValue.Type.MACRO) {
-            value.pop(); // pull the macro out of the expression and evaluate args
-            return macroCheck.getBuiltinFunction().apply(env, value);
-        }
-        if (cells.size() == 1) {
-            return macroCheck;
-        }
-        cells.set(0, macroCheck);
-        for (int i = 1; i < value.getCount(); i++) {
-            cells.set(i, eval(env, cells.get(i)));
-        } // evaluate all children
-        for (LithpValue cell : value) {
-            if (cell.getType() == LithpValue.Type.ERR) return cell;
-        }
-
-        LithpValue function = value.pop();
-        if (function.getType() != LithpValue.Type.FUNC) {
-            return LithpValue.err("S-expression does not start with function: " + value);
-        }
-
-        return builtinCall(env, function, value);
-    }
-
+    /**
+     * Evaluates a form that is only run once, such as the argument of a macro or of eval.
+     * Code that runs repeatedly, such as the body of a lambda, is compiled once instead. See LithpCompiler.
+     */
     private LithpValue eval(LithpEnv env, LithpValue value) {
         if (value.getType() == LithpValue.Type.SYM) {
             return env.get(value);
         }
         if (value.getType() == LithpValue.Type.S_EXPR) {
-            return evalSexpr(env, value);
+            return compiler.compile(value, env).eval(env);
         }
         return value;
     }
@@ -68,16 +52,9 @@ public class LithpEvaluator {
         }
         LithpValue cond = eval(env, args.pop());
         if (cond.getType() == LithpValue.Type.ERR) return cond;
-        else {
-            LithpValue temp = LithpValue.sexpr();
-            temp.add(cond);
-            cond = builtinBool(temp);
-        }
         LithpValue ifBody = args.pop();
         LithpValue elseBody = args.pop();
-        LithpEnv evaluationEnv = new LithpEnv();
-        evaluationEnv.setParent(env);
-        return cond.equals(LithpValue.TRUE) ? eval(evaluationEnv, ifBody) : eval(evaluationEnv, elseBody);
+        return isTrue(cond) ? eval(env, ifBody) : eval(env, elseBody);
     }
     LithpValue builtinDef(LithpEnv env, LithpValue args) {
         return builtinVar(env, args, "def");
@@ -156,7 +133,7 @@ public class LithpEvaluator {
             sym = eval(env, sym);
             listType = sym.getType();
             if (listType == LithpValue.Type.Q_EXPR && sym.getCount() == 1 && sym.get(0).getType() == LithpValue.Type.SYM) {
-                sym = sym.pop();
+                sym = sym.get(0);
                 listType = LithpValue.Type.SYM;
             }
         }
@@ -181,8 +158,7 @@ public class LithpEvaluator {
                     "Expected S-Expression, found " + typeName(sexp) + ": " + sexp + ".");
         }
         //</editor-fold>
-        sexp.setType(LithpValue.Type.Q_EXPR);
-        return sexp;
+        return sexp.slice(LithpValue.Type.Q_EXPR, 0);
     }
     LithpValue builtinExit() {
         return LithpValue.exit();
@@ -203,60 +179,76 @@ public class LithpEvaluator {
             return LithpValue.err("Function 'lambda' passed incorrect type for second argument.\n" +
                     "Expected S-Expression or List, found " + typeName(body) + ": " + body + ".");
         }
-        body.setType(LithpValue.Type.S_EXPR);
+        body = body.slice(LithpValue.Type.S_EXPR, 0);
         for (LithpValue sym : formals) {
             if (sym.getType() != LithpValue.Type.SYM) {
                 return LithpValue.err("Function 'lambda' first argument contains non-symbols.\n" +
                         "Expected Symbol, found " + typeName(sym) + ": " + sym + ".");
             }
         }
-        return LithpValue.lambda(creator, formals, body);
-    }
-    private LithpValue builtinCall(LithpEnv env, LithpValue func, LithpValue args) {if (func.isBuiltin()) {
-            return func.getBuiltinFunction().apply(env, args);
-        }
-        int formal = func.getFormals().getCount();
+        return compiler.compileLambda(creator, formals, body).eval(creator);
+    }
+    /**
+     * Calls a function. A builtin is applied at once. A lambda's body is left to the trampoline to run next,
+     * so that a call in tail position does not use Java stack.
+     * @param trampoline The trampoline running the call, whose environment is the caller's.
+     * @param func The function.
+     * @param args The values of the arguments.
+     */
+    void builtinCall(LithpNode.Trampoline trampoline, LithpValue func, LithpValue args) {
+        if (func.isBuiltin()) {
+            trampoline.setValue(func.getBuiltinFunction().apply(trampoline.getEnv(), args));
+            return;
+        }
+        // the function and its code are shared by every call; only the frame is new
+        LithpNode.Lambda lambda = func.getCode();
+        LithpEnv frame = lambda.frame(func);
+        LithpValue formals = func.getFormals();
+        int formal = formals.getCount();
         int actual = args.getCount();
         if (formal == 0 && actual == 1 && args.get(0).equals(LithpValue.VOID)) {
-            func.getEnv().setParent(env);
-            return eval(func.getEnv(), new LithpValue(func.getBody()));
-        }
-        func = new LithpValue(func); // copy now so we don't consume formals
-        LithpValue formals = func.getFormals();
-        while (args.getCount() > 0) {
-            if (formals.getCount() <= 0) {
-                return LithpValue.err("A function's formal and actual argument lists differ in length.\n" +
-                        "Formal: " + formal + ", Actual: " + actual + ".");
+            lambda.enter(trampoline, frame);
+            return;
+        }
+        int position = lambda.position(func);
+        int bound = 0; // formals of func bound so far
+        for (int arg = 0; arg < actual; arg++) {
+            if (bound >= formal) {
+                trampoline.setValue(LithpValue.err("A function's formal and actual argument lists differ in length.\n" +
+                        "Formal: " + formal + ", Actual: " + actual + "."));
+                return;
             }
-            LithpValue formalSym = formals.pop();
-            if (formalSym.getSym().equals("&")) {
-                if (formals.getCount() != 1) {
-                    return LithpValue.err("Can't bind function formals.\n" +
-                            "Symbol '&' not followed by exactly one Symbol.");
+            LithpValue formalSym = formals.get(bound++);
+            if (formalSym.getSymbol() == LithpSymbol.REST) {
+                if (formal - bound != 1) {
+                    trampoline.setValue(LithpValue.err("Can't bind function formals.\n" +
+                            "Symbol '&' not followed by exactly one Symbol."));
+                    return;
                 }
-                formalSym = formals.pop();
-                if (args.getCount() == 1 && args.get(0).equals(LithpValue.VOID)) {
-                    func.getEnv().put(formalSym, LithpValue.qexpr());
+                if (actual - arg == 1 && args.get(arg).equals(LithpValue.VOID)) {
+                    frame.setLocal(lambda.slot(position + bound), LithpValue.qexpr());
                 } else {
-                    func.getEnv().put(formalSym, builtinList(args));
+                    frame.setLocal(lambda.slot(position + bound), args.slice(LithpValue.Type.Q_EXPR, arg));
                 }
+                bound++;
                 break;
             }
-            func.getEnv().put(formalSym, args.pop());
+            frame.setLocal(lambda.slot(position + bound - 1), args.get(arg));
         }
-        if (formals.getCount() > 0 && formals.get(0).getSym().equals("&")) {
-            if (formals.getCount() != 2) {
-                return LithpValue.err("Can't bind function formals.\n" +
-                        "Symbol '&' not followed by exactly one Symbol.");
+        if (bound < formal && formals.get(bound).getSymbol() == LithpSymbol.REST) {
+            if (formal - bound != 2) {
+                trampoline.setValue(LithpValue.err("Can't bind function formals.\n" +
+                        "Symbol '&' not followed by exactly one Symbol."));
+                return;
             }
-            formals.pop();
-            func.getEnv().put(formals.pop(), LithpValue.qexpr());
+            frame.setLocal(lambda.slot(position + bound + 1), LithpValue.qexpr());
+            bound += 2;
         }
-        if (formals.getCount() == 0) {
-            func.getEnv().setParent(env);
-            return eval(func.getEnv(), new LithpValue(func.getBody()));
+        if (bound == formal) {
+            lambda.enter(trampoline, frame);
         } else {
-            return func;
+            // the partially applied function keeps the frame, and copies it for each call
+            trampoline.setValue(LithpValue.lambda(frame, formals.slice(LithpValue.Type.Q_EXPR, bound), func.getBody(), lambda));
         }
     }
     // list functions
@@ -280,7 +272,7 @@ public class LithpEvaluator {
             return LithpValue.err("Function 'head' actual and formal argument lists differ in length.\n" +
                     "Formal: 1, Actual: " + arg.getCount() + ".");
         }
-        LithpValue ret = new LithpValue(arg).pop();
+        LithpValue ret = arg.pop();
         if (ret.getType() != LithpValue.Type.Q_EXPR) {
             return LithpValue.err("Function 'head' passed incorrect type.\n" +
                     "Expected List, found " + typeName(ret) + ": " + ret + ".");
@@ -289,11 +281,9 @@ public class LithpEvaluator {
             return LithpValue.err("Function 'head' passed '().");
         }
         //</editor-fold>
-        List<LithpValue> qexpr = ret.getCells(); // ret is defined in the editor fold
-        while (qexpr.size() > 1) {
-            qexpr.remove(1);
-        }
-        return ret;
+        LithpValue head = LithpValue.qexpr();
+        head.add(ret.get(0)); // ret is defined in the editor fold
+        return head;
     }
     LithpValue builtinTail(LithpValue arg) {
         //<editor-fold desc="Error checking">
@@ -301,7 +291,7 @@ public class LithpEvaluator {
             return LithpValue.err("Function 'tail' actual and formal argument lists differ in length.\n" +
                     "Formal: 1, Actual: " + arg.getCount() + ".");
         }
-        LithpValue ret = new LithpValue(arg.pop());
+        LithpValue ret = arg.pop();
         if (ret.getType() != LithpValue.Type.Q_EXPR) {
             return LithpValue.err("Function 'tail' passed incorrect type.\n" +
                     "Expected List, found " + typeName(ret) + ": " + ret + ".");
@@ -310,8 +300,7 @@ public class LithpEvaluator {
             return LithpValue.err("Function 'tail' passed '().");
         }
         //</editor-fold>
-        ret.getCells().remove(0); // ret is defined in the editor fold, ret = arg.pop()
-        return ret;
+        return ret.rest(); // ret is defined in the editor fold, ret = arg.pop()
     }
     LithpValue builtinJoin(LithpValue args) {
         //<editor-fold desc="Error checking">
@@ -325,9 +314,9 @@ public class LithpEvaluator {
             }
         }
         //</editor-fold>
-        LithpValue x = new LithpValue(args.pop());
-        while (args.getCount() > 0) {
-            x.join(args.pop());
+        LithpValue x = args.get(0).slice(LithpValue.Type.Q_EXPR, 0);
+        for (int i = 1; i < args.getCount(); i++) {
+            x.join(args.get(i));
         }
         return x;
     }
@@ -347,8 +336,7 @@ public class LithpEvaluator {
                     "Expected List, found " + typeName(x) + ": " + x + ".");
         }
         //</editor-fold>
-        x.setType(LithpValue.Type.S_EXPR); // x = arg.pop() in the editor fold
-        return eval(env, x);
+        return eval(env, x.slice(LithpValue.Type.S_EXPR, 0)); // x = arg.pop() in the editor fold
     }
     // order functions
     private LithpValue builtinOrd(LithpValue args, String op) {
@@ -406,11 +394,17 @@ public class LithpEvaluator {
             return LithpValue.err("Function 'bool' actual and formal argument lists differ in length.\n" +
                     "Formal: 1, Actual: " + arg.getCount() + ".");
         }
-        LithpValue x = arg.pop();
-        if (x.equals(LithpValue.FALSE) || x.equals(LithpValue.NIL) || x.equals(LithpValue.sexpr()) || (x.getType() == LithpValue.Type.NUM && x.getNum() == 0)) {
-            return LithpValue.FALSE;
+        return isTrue(arg.pop()) ? LithpValue.TRUE : LithpValue.FALSE;
+    }
+    /** Whether a value counts as true: anything but #f, an empty list, an empty S-expression, or 0. */
+    static boolean isTrue(LithpValue x) {
+        switch (x.getType()) {
+            case BOOL: return !x.equals(LithpValue.FALSE);
+            case Q_EXPR:
+            case S_EXPR: return x.getCount() > 0;
+            case NUM: return x.getNum() != 0;
+            default: return true;
         }
-        return LithpValue.TRUE;
     }
     LithpValue builtinAnd(LithpValue args) {
         for(LithpValue term : args) {
@@ -0,0 +1,371 @@
+package Lithp;
+
+import java.util.List;
+
+/**
+ * A form of Lithp code that has been analyzed into a tree of executable nodes, so that running it again
+ * does not re-interpret the form. See LithpCompiler.
+ *
+ * Nodes never modify the forms they were compiled from, so a node tree can be run any number of times.
+ */
+abstract class LithpNode {
+    /**
+     * Runs the node.
+     * @param env The environment to run it in.
+     * @return The value of the form.
+     */
+    abstract LithpValue eval(LithpEnv env);
+
+    /**
+     * Runs the node in tail position, for a Trampoline. A node that ends by running another node in the same
+     * call, such as a branch of an if or the body of a function it calls, leaves that node to the trampoline
+     * with jump() instead of running it, so that a chain of tail calls runs in constant Java stack.
+     * Any other node sets the trampoline's value.
+     * @param trampoline The trampoline, whose environment to run the node in.
+     */
+    void evalTail(Trampoline trampoline) {
+        trampoline.value = eval(trampoline.env);
+    }
+
+    /** Runs nodes in tail position until one of them produces a value. */
+    static final class Trampoline {
+        private LithpNode node;
+        private LithpEnv env;
+        private LithpValue value;
+
+        Trampoline(LithpNode node, LithpEnv env) {
+            this.node = node;
+            this.env = env;
+        }
+
+        /**
+         * Runs the next node.
+         * @param node The node.
+         * @param env The environment to run it in.
+         */
+        void jump(LithpNode node, LithpEnv env) {
+            this.node = node;
+            this.env = env;
+        }
+
+        /** Sets the value the nodes produced. */
+        void setValue(LithpValue value) {
+            this.value = value;
+        }
+
+        /** The environment the node being run runs in. */
+        LithpEnv getEnv() {
+            return env;
+        }
+
+        /**
+         * Runs the nodes.
+         * @return The value they produced.
+         */
+        LithpValue run() {
+            while (node != null) {
+                LithpNode next = node;
+                node = null;
+                next.evalTail(this);
+            }
+            return value;
+        }
+    }
+
+    /** A value that evaluates to itself: a number, a list, or a value spliced into code by eval. */
+    static final class Constant extends LithpNode {
+        private final LithpValue value;
+
+        Constant(LithpValue value) {
+            this.value = value;
+        }
+
+        @Override
+        LithpValue eval(LithpEnv env) {
+            // builtins never modify the lists they are passed, so every run shares the value
+            return value;
+        }
+    }
+
+    /** A reference to a variable of a frame, by its lexical address. */
+    static final class Local extends LithpNode {
+        private final LithpValue sym;
+        private final int depth;
+        private final int slot;
+
+        Local(LithpValue sym, int depth, int slot) {
+            this.sym = sym;
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        LithpValue eval(LithpEnv env) {
+            LithpValue value = env.getLocal(depth, slot);
+            // a let's variable is unbound until its value has been computed
+            return value != null ? value : LithpValue.err("Unbound Symbol: " + sym.getSym() + ".");
+        }
+    }
+
+    /** A reference to a variable that is not bound by any lambda around it, so is looked up in the global environment. */
+    static final class Global extends LithpNode {
+        private final LithpValue sym;
+        private final LithpEnv globalEnv;
+
+        Global(LithpValue sym, LithpEnv globalEnv) {
+            this.sym = sym;
+            this.globalEnv = globalEnv;
+        }
+
+        @Override
+        LithpValue eval(LithpEnv env) {
+            return globalEnv.get(sym);
+        }
+    }
+
+    /** A reference to a variable that is bound by name at runtime, looked up through every environment. */
+    static final class Ref extends LithpNode {
+        private final LithpValue sym;
+
+        Ref(LithpValue sym) {
+            this.sym = sym;
+        }
+
+        @Override
+        LithpValue eval(LithpEnv env) {
+            return env.get(sym);
+        }
+    }
+
+    /** An if form with a condition and two branches. */
+    static final class If extends LithpNode {
+        private final LithpNode condition;
+        private final LithpNode then;
+        private final LithpNode otherwise;
+
+        If(LithpNode condition, LithpNode then, LithpNode otherwise) {
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        LithpValue eval(LithpEnv env) {
+            return new Trampoline(this, env).run();
+        }
+
+        @Override
+        void evalTail(Trampoline trampoline) {
+            LithpValue cond = condition.eval(trampoline.env);
+            if (cond.getType() == LithpValue.Type.ERR) {
+                trampoline.value = cond;
+                return;
+            }
+            trampoline.jump(LithpEvaluator.isTrue(cond) ? then : otherwise, trampoline.env);
+        }
+    }
+
+    /** A def form that binds a symbol in the global environment. */
+    static final class Def extends LithpNode {
+        private final LithpValue sym;
+        private final LithpNode value;
+
+        Def(LithpValue sym, LithpNode value) {
+            this.sym = sym;
+            this.value = value;
+        }
+
+        @Override
+        LithpValue eval(LithpEnv env) {
+            env.def(sym, value.eval(env));
+            return LithpValue.VOID;
+        }
+    }
+
+    /**
+     * A let form that binds a symbol, then evaluates its body. Inside a lambda the symbol has a slot of the lambda's frame;
+     * elsewhere it is bound by name in the current environment.
+     */
+    static final class Let extends LithpNode {
+        private final LithpValue sym;
+        /** The slot of the symbol, or -1 to bind it by name */
+        private final int slot;
+        private final LithpNode value;
+        private final LithpNode body;
+
+        Let(LithpValue sym, int slot, LithpNode value, LithpNode body) {
+            this.sym = sym;
+            this.slot = slot;
+            this.value = value;
+            this.body = body;
+        }
+
+        @Override
+        LithpValue eval(LithpEnv env) {
+            return new Trampoline(this, env).run();
+        }
+
+        @Override
+        void evalTail(Trampoline trampoline) {
+            bind(trampoline.env, sym, slot, value.eval(trampoline.env));
+            trampoline.jump(body, trampoline.env);
+        }
+    }
+
+    /** A let-values form whose symbols and values were written as lists of the same length. See Let. */
+    static final class LetValues extends LithpNode {
+        private final LithpValue[] syms;
+        private final int[] slots;
+        private final LithpNode[] values;
+        private final LithpNode body;
+
+        LetValues(LithpValue[] syms, int[] slots, LithpNode[] values, LithpNode body) {
+            this.syms = syms;
+            this.slots = slots;
+            this.values = values;
+            this.body = body;
+        }
+
+        @Override
+        LithpValue eval(LithpEnv env) {
+            return new Trampoline(this, env).run();
+        }
+
+        @Override
+        void evalTail(Trampoline trampoline) {
+            for (int i = 0; i < syms.length; i++) {
+                bind(trampoline.env, syms[i], slots[i], values[i].eval(trampoline.env));
+            }
+            trampoline.jump(body, trampoline.env);
+        }
+    }
+
+    private static void bind(LithpEnv env, LithpValue sym, int slot, LithpValue value) {
+        if (slot >= 0) {
+            env.setLocal(slot, value);
+        } else {
+            env.put(sym, value);
+        }
+    }
+
+    /**
+     * A lambda. Evaluating it creates a function that closes over the current environment.
+     * Each call of the function runs the compiled body in a new frame, whose slots are laid out here.
+     */
+    static final class Lambda extends LithpNode {
+        private final LithpValue formals;
+        /** The body as it was written, as an S-expression */
+        private final LithpValue body;
+        /** The name of each slot of a frame: the formals, then the lets of the body */
+        private final LithpSymbol[] names;
+        /** The slot of each formal, by position in the formals, or -1 for '&' */
+        private final int[] slots;
+        private final LithpNode code;
+
+        Lambda(LithpValue formals, LithpValue body, LithpSymbol[] names, int[] slots, LithpNode code) {
+            this.formals = formals;
+            this.body = body;
+            this.names = names;
+            this.slots = slots;
+            this.code = code;
+        }
+
+        @Override
+        LithpValue eval(LithpEnv env) {
+            return LithpValue.lambda(env, formals, body, this);
+        }
+
+        /**
+         * Creates a frame for a call of a function of this lambda.
+         * @param func The function, which may have been partially applied already.
+         * @return A new frame, holding any arguments the function was partially applied to.
+         */
+        LithpEnv frame(LithpValue func) {
+            if (position(func) > 0) {
+                return new LithpEnv(func.getEnv());
+            }
+            return new LithpEnv(func.getEnv(), names);
+        }
+
+        /** The position in the formals of the first formal a function of this lambda has left to bind. */
+        int position(LithpValue func) {
+            return formals.getCount() - func.getFormals().getCount();
+        }
+
+        /** The slot of the formal at a position in the formals. */
+        int slot(int position) {
+            return slots[position];
+        }
+
+        /**
+         * Runs the body next, in place of the call that bound the frame.
+         * @param trampoline The trampoline running the call.
+         * @param frame The frame of the call, with every formal bound.
+         */
+        void enter(Trampoline trampoline, LithpEnv frame) {
+            trampoline.jump(code, frame);
+        }
+    }
+
+    /**
+     * Any other S-expression. Its head is evaluated when it runs: a function is called with the values of the
+     * arguments, and a macro is applied to the arguments as they were written.
+     */
+    static final class Call extends LithpNode {
+        private final LithpEvaluator evaluator;
+        private final LithpNode head;
+        private final LithpNode[] args;
+        /** The arguments as they were written, for macros. */
+        private final List<LithpValue> forms;
+
+        Call(LithpEvaluator evaluator, LithpNode head, LithpNode[] args, List<LithpValue> forms) {
+            this.evaluator = evaluator;
+            this.head = head;
+            this.args = args;
+            this.forms = forms;
+        }
+
+        @Override
+        LithpValue eval(LithpEnv env) {
+            return new Trampoline(this, env).run();
+        }
+
+        @Override
+        void evalTail(Trampoline trampoline) {
+            LithpEnv env = trampoline.env;
+            LithpValue function = head.eval(env);
+            if (function.getType() == LithpValue.Type.MACRO) {
+                // macros take apart the list of forms they are passed, but not the forms themselves
+                LithpValue raw = LithpValue.sexpr();
+                for (LithpValue form : forms) {
+                    raw.add(form);
+                }
+                trampoline.value = function.getBuiltinFunction().apply(env, raw);
+                return;
+            }
+            if (args.length == 0) {
+                trampoline.value = function;
+                return;
+            }
+            LithpValue values = LithpValue.sexpr();
+            for (LithpNode arg : args) {
+                values.add(arg.eval(env));
+            } // evaluate all children
+            if (function.getType() == LithpValue.Type.ERR) {
+                trampoline.value = function;
+                return;
+            }
+            for (LithpValue cell : values) {
+                if (cell.getType() == LithpValue.Type.ERR) {
+                    trampoline.value = cell;
+                    return;
+                }
+            }
+            if (function.getType() != LithpValue.Type.FUNC) {
+                trampoline.value = LithpValue.err("S-expression does not start with function: " + values);
+                return;
+            }
+            evaluator.builtinCall(trampoline, function, values);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package Lithp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The name of a symbol. Names are interned: each distinct name has one LithpSymbol, shared by every
+ * symbol value with that name and every copy of one, so symbols are compared by identity and hashed by their id.
+ */
+final class LithpSymbol {
+    private static final Map<String, LithpSymbol> table = new HashMap<>();
+
+    /** The symbol that separates a lambda's formals from the one that binds the rest of its arguments */
+    static final LithpSymbol REST = intern("&");
+
+    private final String name;
+    /** The number of the symbol, in the order symbols were first interned */
+    private final int id;
+
+    private LithpSymbol(String name, int id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    /**
+     * Gets the symbol with a name, creating it the first time the name is seen.
+     * @param name The name.
+     * @return The canonical symbol with that name.
+     */
+    static synchronized LithpSymbol intern(String name) {
+        LithpSymbol symbol = table.get(name);
+        if (symbol == null) {
+            symbol = new LithpSymbol(name, table.size());
+            table.put(name, symbol);
+        }
+        return symbol;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
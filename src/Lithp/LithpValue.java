@@ -1,8 +1,11 @@
 package Lithp;
 
 import ParserCombinator.ParseTree;
+import ParserCombinator.ParserCombinator;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
@@ -22,27 +25,56 @@ public class LithpValue implements Iterable<LithpValue> {
     private long num;
     /** Boolean types store a boolean */
     private boolean bool;
-    /** ERR and SYM types store a string */
+    /** ERR types store a string, and builtin FUNC and MACRO types their name */
     private String err;
     private String sym;
+    /** SYM types store their interned name, and also its string in sym */
+    private LithpSymbol symbol;
     /** S_EXPR types store a list of L-Vals */
     private List<LithpValue> lvals;
     /** builtin FUNC and MACRO types store a (LithpEnv, LithpValue) -> LithpValue function */
     private BiFunction<LithpEnv, LithpValue, LithpValue> builtinFunction;
     private boolean builtin;
-    /** User-defined functions store a creation environment, calling environment, formal argument list, and code body */
+    /** User-defined functions store the environment they close over, formal argument list, and code body.
+     *  A partially applied function stores the frame of its bound arguments as its environment, and the formals left */
     private LithpEnv env;
     private LithpValue formals;
     private LithpValue body;
+    /** User-defined functions also store their compiled lambda, which is shared by every copy */
+    private LithpNode.Lambda code;
 
     void add(LithpValue toAdd) {
         if (!(type == Type.S_EXPR || type == Type.Q_EXPR)) { return; }
         lvals.add(toAdd);
     }
     void join(LithpValue y) {
-        while (y.getCount() > 0) {
-            add(y.pop());
-        }
+        lvals.addAll(y.lvals);
+    }
+
+    /**
+     * Copies part of a list, sharing its cells.
+     * Lists are not modified once they have been evaluated, so builtins use this to build their results.
+     * @param listType The type of the copy, S_EXPR or Q_EXPR.
+     * @param from The index of the first cell to copy.
+     * @return A new list of the cells from that index on.
+     */
+    LithpValue slice(Type listType, int from) {
+        LithpValue v = new LithpValue();
+        v.type = listType;
+        v.lvals = new ArrayList<>(lvals.subList(from, lvals.size()));
+        return v;
+    }
+
+    /**
+     * Gets a list without its first cell, in constant time, so that walking a list with tail takes linear time.
+     * The result shares this list's cells without copying them, and cannot be modified.
+     * @return A new list of the same type as this one.
+     */
+    LithpValue rest() {
+        LithpValue v = new LithpValue();
+        v.type = type;
+        v.lvals = Collections.unmodifiableList(lvals.subList(1, lvals.size()));
+        return v;
     }
 
     @Override
@@ -52,7 +84,7 @@ public class LithpValue implements Iterable<LithpValue> {
         if (type != value.type) return false;
         switch (type) {
             case VOID: return true;
-            case SYM: return sym.equals(value.sym);
+            case SYM: return symbol == value.symbol;
             case BOOL: return bool == value.bool;
             case Q_EXPR:
             case S_EXPR:
@@ -94,20 +126,91 @@ public class LithpValue implements Iterable<LithpValue> {
                 break;
             default: ret = VOID; break; // Happens when attempting to read an empty s-expression
         }
-        for (ParseTree.Node child : node) {
+        for (ParseTree.Node child = node.getChild(); child != null; child = child.getSibling()) {
             LithpValue toAdd = read(child);
             if (toAdd.getType() != Type.VOID) ret.add(toAdd);
         }
         return ret;
     }
     private static LithpValue readNum(ParseTree.Node node) {
+        return readNum(node.getValue());
+    }
+    private static LithpValue readNum(String number) {
         try {
-            return LithpValue.num(Long.valueOf(node.getValue()));
+            return LithpValue.num(Long.valueOf(number));
         } catch (NumberFormatException e) {
             return LithpValue.err("Error: Invalid Number");
         }
     }
 
+    /** The grammar of Lithp code, in the BNF form read by ParserCombinator. Each match of its start rule is one form. */
+    public static final String GRAMMAR =
+            "<number> ::= /-?[0-9]+/\n" +
+                    "<symbol> ::= /[a-zA-Z0-9_+\\-*\\/\\\\=<>?~!@#$%^&|]+/\n" +
+                    "<ws>i ::= /\\s/*\n" +
+                    "<comment>i ::= /;.*?\\n/\n" +
+                    "<expr> ::= <number> <ws> | <symbol> <ws> | <comment>* <sexpr> <ws> | <qexpr> <ws>\n" +
+                    "<sexpr> ::= '('i <ws> <expr>* ')'i\n" +
+                    "<qexpr> ::= \"'(\"i <ws> <expr>* ')'i\n" +
+                    "<lithp> ::= <expr>";
+
+    /**
+     * Sets semantic actions on a ParserCombinator for the Lithp grammar, so that its runActions()
+     * reads LithpValues directly while parsing, with the same results as read() on a ParseTree.
+     * The grammar must have the rules number, symbol, sexpr and qexpr.
+     *
+     * @param lithp The ParserCombinator for the Lithp grammar.
+     */
+    public static void addReadActions(ParserCombinator lithp) {
+        lithp.setAction("number", children -> readNum((String) children.get(0)));
+        lithp.setAction("symbol", children -> LithpValue.sym((String) children.get(0)));
+        lithp.setAction("sexpr", children -> readExpr(LithpValue.sexpr(), children));
+        lithp.setAction("qexpr", children -> readExpr(LithpValue.qexpr(), children));
+    }
+    /**
+     * Finds where the top-level forms of Lithp code start, without parsing it, so that the code can be split
+     * for ParserCombinator.runParallel(). A form starts after the ')' that closes the previous top-level form
+     * and the whitespace after it. Parentheses in comments are skipped.
+     * Scanning stops at an unmatched ')', since nothing after it can be split reliably.
+     *
+     * @param code The code to scan.
+     * @return The positions where top-level forms start, in increasing order. The start of the code is not included.
+     */
+    public static int[] topLevelForms(CharSequence code) {
+        int[] starts = new int[16];
+        int count = 0;
+        int depth = 0;
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c == ';') {
+                while (i < code.length() && code.charAt(i) != '\n') i++;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                if (--depth < 0) break;
+                if (depth == 0) {
+                    // the next form starts after the whitespace that the <expr> rule consumes
+                    while (i + 1 < code.length() && isWhitespace(code.charAt(i + 1))) i++;
+                    if (count == starts.length) starts = Arrays.copyOf(starts, count * 2);
+                    starts[count++] = i + 1;
+                }
+            }
+        }
+        return Arrays.copyOf(starts, count);
+    }
+    /** Whether a character is whitespace as the <ws> rule of GRAMMAR matches it: by the regex \s, without Unicode classes. */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static LithpValue readExpr(LithpValue expr, List<Object> children) {
+        for (Object child : children) {
+            LithpValue toAdd = (LithpValue) child;
+            if (toAdd.getType() != Type.VOID) expr.add(toAdd);
+        }
+        return expr;
+    }
+
     @Override
     public Iterator<LithpValue> iterator() {
         if (type != Type.S_EXPR && type != Type.Q_EXPR) {
@@ -154,6 +257,9 @@ public class LithpValue implements Iterable<LithpValue> {
     String getSym() {
         return sym;
     }
+    LithpSymbol getSymbol() {
+        return symbol;
+    }
     String getErr() {
         return err;
     }
@@ -187,6 +293,9 @@ public class LithpValue implements Iterable<LithpValue> {
     LithpValue getBody() {
         return body;
     }
+    LithpNode.Lambda getCode() {
+        return code;
+    }
 
     private LithpValue() {}
     LithpValue(LithpValue toCopy) {
@@ -196,13 +305,17 @@ public class LithpValue implements Iterable<LithpValue> {
             case MACRO:
                 sym = toCopy.sym;
                 builtinFunction = toCopy.builtinFunction;
-                env = new LithpEnv(toCopy.env);
-                formals = new LithpValue(toCopy.formals);
-                body = new LithpValue(toCopy.body);
+                builtin = toCopy.builtin;
+                if (!builtin) {
+                    env = toCopy.env;
+                    formals = new LithpValue(toCopy.formals);
+                    body = new LithpValue(toCopy.body);
+                    code = toCopy.code;
+                }
                 break;
             case VOID: break;
             case NUM: num = toCopy.num; break;
-            case SYM: sym = toCopy.sym; break;
+            case SYM: sym = toCopy.sym; symbol = toCopy.symbol; break;
             case BOOL: bool = toCopy.bool; break;
             case ERR: err = toCopy.err; break;
             case S_EXPR:
@@ -245,9 +358,13 @@ public class LithpValue implements Iterable<LithpValue> {
         return v;
     }
     static LithpValue sym(String s) {
+        return sym(LithpSymbol.intern(s));
+    }
+    static LithpValue sym(LithpSymbol symbol) {
         LithpValue v = new LithpValue();
         v.type = Type.SYM;
-        v.sym = s;
+        v.sym = symbol.getName();
+        v.symbol = symbol;
         return v;
     }
     static LithpValue sexpr() {
@@ -270,13 +387,14 @@ public class LithpValue implements Iterable<LithpValue> {
         v.builtin = true;
         return v;
     }
-    static LithpValue lambda(LithpEnv creator, LithpValue formalArgs, LithpValue codeBody) {
+    static LithpValue lambda(LithpEnv creator, LithpValue formalArgs, LithpValue codeBody, LithpNode.Lambda compiled) {
         LithpValue v = new LithpValue();
         v.type = Type.FUNC;
         v.builtin = false;
-        v.env = new LithpEnv(creator);
+        v.env = creator;
         v.formals = formalArgs;
         v.body =  codeBody;
+        v.code = compiled;
         return v;
     }
     static LithpValue macro(String symbol, BiFunction<LithpEnv, LithpValue, LithpValue> func) {
@@ -0,0 +1,135 @@
+package ParserCombinator;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of characters, used by the single-character terminal Parsers.
+ * ASCII characters are stored in a 128-bit bitset, and any other characters are stored
+ * as a sorted array of inclusive ranges, so testing a character never allocates.
+ *
+ * @author Max Kopinsky
+ */
+final class CharClass {
+    /** The class containing every character. */
+    static final CharClass ANY = new CharClass(0L, 0L, new char[0], true);
+
+    /** Membership bits for the characters 0-63. */
+    private final long low;
+    /** Membership bits for the characters 64-127. */
+    private final long high;
+    /** Sorted, disjoint, inclusive [start, end] pairs of the non-ASCII members. */
+    private final char[] ranges;
+    /** Whether this class contains exactly the characters that are NOT described by the other fields. */
+    private final boolean negated;
+
+    private CharClass(long low, long high, char[] ranges, boolean negated) {
+        this.low = low;
+        this.high = high;
+        this.ranges = ranges;
+        this.negated = negated;
+    }
+
+    /**
+     * Static factory for a class containing one character.
+     * @param c The member of the class.
+     * @return A CharClass containing only c.
+     */
+    static CharClass of(char c) {
+        return of(String.valueOf(c));
+    }
+
+    /**
+     * Static factory for a class containing every character in a string.
+     * @param chars The members of the class.
+     * @return A CharClass containing exactly the characters of chars.
+     */
+    static CharClass of(String chars) {
+        long low = 0L;
+        long high = 0L;
+        char[] other = new char[chars.length()];
+        int count = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if (c < 64) {
+                low |= 1L << c;
+            } else if (c < 128) {
+                high |= 1L << (c - 64);
+            } else {
+                other[count++] = c;
+            }
+        }
+        Arrays.sort(other, 0, count);
+        // merge the sorted non-ASCII characters into ranges
+        char[] ranges = new char[count * 2];
+        int r = 0;
+        for (int i = 0; i < count; i++) {
+            if (r > 0 && other[i] <= ranges[r - 1] + 1) {
+                ranges[r - 1] = (char) Math.max(ranges[r - 1], other[i]);
+            } else {
+                ranges[r++] = other[i];
+                ranges[r++] = other[i];
+            }
+        }
+        return new CharClass(low, high, Arrays.copyOf(ranges, r), false);
+    }
+
+    /**
+     * Static factory for a class of ASCII characters given as bits, optionally with every non-ASCII character.
+     * @param low Membership bits for the characters 0-63.
+     * @param high Membership bits for the characters 64-127.
+     * @param nonAscii Whether every character above 127 is a member.
+     * @return A CharClass with the given members.
+     */
+    static CharClass of(long low, long high, boolean nonAscii) {
+        if (nonAscii) {
+            // the complement of the ASCII characters that are not members
+            return new CharClass(~low, ~high, new char[0], true);
+        }
+        return new CharClass(low, high, new char[0], false);
+    }
+
+    /**
+     * Gets the complement of this class.
+     * @return A CharClass containing exactly the characters not in this one.
+     */
+    CharClass negate() {
+        return new CharClass(low, high, ranges, !negated);
+    }
+
+    /**
+     * Gets a Java expression that creates this class, for compiled grammars.
+     * Only classes without non-ASCII ranges, such as those made by of(long, long, boolean), can be written out.
+     * @return A call to of(long, long, boolean).
+     * @throws IllegalStateException if this class has non-ASCII ranges.
+     */
+    String toSource() {
+        if (ranges.length > 0) {
+            throw new IllegalStateException("Only classes without non-ASCII ranges can be written as source.");
+        }
+        return "CharClass.of(0x" + Long.toHexString(negated ? ~low : low) + "L, 0x"
+                + Long.toHexString(negated ? ~high : high) + "L, " + negated + ")";
+    }
+
+    /**
+     * Tests whether a character is a member of this class.
+     * @param c The character to test.
+     * @return Whether c is in this class.
+     */
+    boolean matches(char c) {
+        boolean member;
+        if (c < 64) {
+            member = (low & (1L << c)) != 0;
+        } else if (c < 128) {
+            member = (high & (1L << (c - 64))) != 0;
+        } else {
+            member = false;
+            for (int i = 0; i < ranges.length && ranges[i] <= c; i += 2) {
+                if (c <= ranges[i + 1]) {
+                    member = true;
+                    break;
+                }
+            }
+        }
+        return member != negated;
+    }
+}
@@ -3,6 +3,7 @@ import ParserCombinator.Result.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -20,31 +21,159 @@ import java.util.regex.Pattern;
 abstract class Combinators {
     /**
      * The "alternation" combinator. The output Parser runs the input Parsers in sequence and
-     * returns the Result of the first successful one. If they all fail, it returns a Failure
-     * whose value lists the error produced by each Parser.
+     * returns the Result of the first successful one. If they all fail, it returns the Failure
+     * that got farthest into the input, preferring earlier Parsers on ties. No error message is built;
+     * what each alternative expected has already been recorded by its terminals. See Result.Failure.
+     * Each Parser is a choice that a cut can commit; if a committed Parser fails, its Failure is returned at once.
      *
      * @param list The list of input Parsers to alternate. Accepts variadic input.
      * @return An alternated Parser.
      */
     static Parser alternate(Parser... list) {
         return new Parser(stream -> {
-            List<Symbol> error = new ArrayList<>();
+            Result farthest = null;
             for (Parser parser : list) {
+                int choice = choose(stream);
                 Result result = parser.run(stream);
-                if (result instanceof Success) {
+                if (release(stream, choice) || result instanceof Success) {
                     return result;
-                } else if (result instanceof Failure) {
-                    String e = "";
-                    for (Symbol symbol : result.value) {
-                        e += (e.endsWith(": ") ? " " : "; ") + symbol.toString();
-                    }
-                    error.add(Symbol.value(e.substring(2)));
+                }
+                if (farthest == null || result.rest.cursor() > farthest.rest.cursor()) {
+                    farthest = result;
                 }
             }
-            return new Failure(error, stream);
+            return farthest != null ? farthest : new Failure(Rope.EMPTY, stream);
         });
     }
 
+    /**
+     * The alternation combinator for Parsers whose FIRST sets are known, such as the productions of a grammar rule.
+     * It behaves exactly like alternate(), but does not run a Parser that cannot match the next character.
+     * Instead, what that Parser would have expected there is recorded directly, so the error of a failed run is unchanged.
+     *
+     * @param list The Parsers to alternate.
+     * @param firsts The characters each Parser can start with, or null for a Parser that can match the empty string.
+     * @param labels What each Parser expects when it fails at a character outside of its FIRST set. See Grammar.expected().
+     * @return An alternated Parser.
+     */
+    static Parser dispatch(Parser[] list, CharClass[] firsts, Rope[][] labels) {
+        return new Parser(stream -> dispatch(list, firsts, labels, stream));
+    }
+
+    /**
+     * Runs the alternation of Parsers whose FIRST sets are known. See dispatch(). Also used by compiled grammars.
+     *
+     * @param list The Parsers to alternate.
+     * @param firsts The characters each Parser can start with, or null for a Parser that can match the empty string.
+     * @param labels What each Parser expects when it fails at a character outside of its FIRST set.
+     * @param stream The Stream to run the Parsers on.
+     * @return The Result of the first successful Parser, or else the Failure that got farthest.
+     */
+    static Result dispatch(Parser[] list, CharClass[] firsts, Rope[][] labels, Stream stream) {
+        int c = stream.atEnd() ? -1 : stream.head();
+        Result farthest = null;
+        int farthestIndex = -1;
+        int skipped = -1;
+        for (int i = 0; i < list.length; i++) {
+            if (firsts[i] != null && (c < 0 || !firsts[i].matches((char) c))) {
+                skip(labels[i], stream);
+                if (skipped < 0) {
+                    skipped = i;
+                }
+                continue;
+            }
+            int choice = choose(stream);
+            Result result = list[i].run(stream);
+            if (release(stream, choice) || result instanceof Success) {
+                return result;
+            }
+            if (farthest == null || result.rest.cursor() > farthest.rest.cursor()) {
+                farthest = result;
+                farthestIndex = i;
+            }
+            ParseContext context = stream.getContext();
+            if (context != null && context.getProfile() != null) {
+                context.getProfile().backtrack(result.rest.cursor() - stream.cursor());
+            }
+        }
+        if (skipped >= 0 && (farthest == null
+                || (farthest.rest.cursor() == stream.cursor() && skipped < farthestIndex))) {
+            // alternate() would have returned the Failure of the first skipped Parser, so get it
+            int choice = choose(stream);
+            Result result = list[skipped].run(stream);
+            release(stream, choice);
+            return result;
+        }
+        return farthest != null ? farthest : new Failure(Rope.EMPTY, stream);
+    }
+
+    /**
+     * Starts trying a choice that a cut can commit. See ParseContext.choose().
+     * Also used by compiled grammars.
+     *
+     * @param stream The Stream the choice starts at.
+     * @return The choice, or -1 if the run does not track choices.
+     */
+    static int choose(Stream stream) {
+        ParseContext context = stream.getContext();
+        return context == null ? -1 : context.choose(stream.cursor());
+    }
+
+    /**
+     * Finishes trying a choice. Also used by compiled grammars.
+     * @param stream Any Stream of the run.
+     * @param choice The choice returned by choose().
+     * @return Whether a cut committed the choice, so that its alternatives must not be tried.
+     */
+    static boolean release(Stream stream, int choice) {
+        return choice >= 0 && stream.getContext().release(choice);
+    }
+
+    /**
+     * A Parser supplier. The output Parser is a cut: it matches the empty string, and commits the innermost choice
+     * being tried, such as an alternative of alternate() or dispatch(), an attempt of maybe(), or a repetition
+     * of star() or plus(). If a committed choice fails, the combinator that was trying it fails at once with its
+     * Failure instead of trying another alternative, or instead of succeeding without it.
+     * A cut in a rule with a single production commits the choice the rule is applied in, so that
+     * {@code <sexpr> ::= '(' ^ <expr>* ')'} stops the alternation of any rule that applies sexpr once '(' has matched.
+     *
+     * Cuts also bound the memory of packrat runs: memo entries before the start of the outermost uncommitted choice
+     * can never be used again, and are dropped as the memo table grows. See ParseContext.cut().
+     * Choices are only tracked in runs of grammars with cuts, so grammars without cuts run as before.
+     *
+     * @return A cut.
+     */
+    static Parser cut() {
+        return new Parser(Combinators::cut);
+    }
+
+    /**
+     * Runs a cut. See cut(). Also used by compiled grammars.
+     * @param stream The Stream at the cut.
+     * @return A Success with an empty value that consumes nothing.
+     */
+    static Result cut(Stream stream) {
+        ParseContext context = stream.getContext();
+        if (context != null) {
+            context.cut(stream.cursor());
+        }
+        return new Success(Rope.EMPTY, stream);
+    }
+
+    /**
+     * Records what a Parser that was not run would have expected at the start of a Stream. See dispatch().
+     * @param labels The labels of the terminals the Parser would have failed at.
+     * @param stream The Stream the Parser was not run on.
+     */
+    private static void skip(Rope[] labels, Stream stream) {
+        ParseContext context = stream.getContext();
+        if (context != null) {
+            for (Rope label : labels) {
+                context.expect(label, stream);
+            }
+        }
+    }
+
     /**
      * A Parser supplier. The output Parser is nonconsuming, always succeeds, and does so with the given string
      * as the only (terminal) Symbol in its value.
@@ -53,7 +182,8 @@ abstract class Combinators {
      * @return A Parser that always succeeds.
      */
     static Parser always(String value) {
-        return new Parser(stream -> new Success(Symbol.value(value), stream));
+        Rope success = Rope.of(Symbol.value(value));
+        return new Parser(stream -> new Success(success, stream));
     }
 
     /**
@@ -64,19 +194,21 @@ abstract class Combinators {
      * @return A Parser that always fails.
      */
     static Parser never(String error) {
-        return new Parser(stream -> new Failure(Symbol.value(error), stream));
+        Rope failure = Rope.of(Symbol.value(error));
+        return new Parser(stream -> new Failure(failure, stream));
     }
 
     /**
      * Returns a Parser that applies two given Parsers in sequence. Slightly better time efficiency than the
      * sequence combinator when only two Parsers are given.
+     * The values of the two Parsers are appended in constant time.
      *
      * @param p1 The first Parser to apply.
      * @param p2 The second Parser to apply.
      * @return A concatenated Parser.
      */
     static Parser concat(Parser p1, Parser p2) {
-        return p1.chain(vs -> p2.map(v -> { vs.addAll(v); return vs; }));
+        return new Parser(stream -> p1.run(stream).chain((vs, s) -> p2.run(s).map(v -> vs.append(v))));
     }
 
     /**
@@ -104,17 +236,22 @@ abstract class Combinators {
 
     /**
      * Returns a Parser that matches the input Parser 0 or 1 times. Equivalent functionality to the regex modifier '?'.
+     * If a cut commits the attempt and it fails, the output Parser fails too.
      *
      * @param parser The Parser to attempt.
      * @return A Parser that matches the input Parser 0 or 1 times.
      */
     static Parser maybe(Parser parser) {
-        return new Parser(stream -> parser.run(stream).fold(
-                (v, s) -> new Success(v, s),
-                // If the parse fails, return a Success with empty value
-                // that does NOT consume any of the input stream
-                (e, s) -> new Success(new ArrayList<>(), stream)
-        ));
+        return new Parser(stream -> {
+            int choice = choose(stream);
+            Result result = parser.run(stream);
+            if (release(stream, choice) || result instanceof Success) {
+                return result;
+            }
+            // If the parse fails, return a Success with empty value
+            // that does NOT consume any of the input stream
+            return new Success(Rope.EMPTY, stream);
+        });
     }
 
     /**
@@ -126,41 +263,203 @@ abstract class Combinators {
      */
     static Parser lookahead(Parser parser) {
         return new Parser(stream -> parser.run(stream).fold(
-                (v, s) -> new Success(new ArrayList<>(), stream),
+                (v, s) -> new Success(Rope.EMPTY, stream),
                 (e, s) -> new Failure(e, stream)));
     }
 
     /**
      * Returns a Parser that matches the input Parser 0 or more times.
      * Behaves like the regex modifier '*'.
+     * Repetitions are matched in a loop and their values appended to a single Rope, so long runs
+     * use constant stack depth and linear time. Repetition stops if the input Parser succeeds without consuming input.
+     * If a cut commits a repetition and it fails, the output Parser fails too.
      *
      * @param parser The Parser to attempt.
      * @return A Parser that matches the input Parser 0 or more times.
      */
     static Parser star(Parser parser) {
-        return new Parser(stream -> parser.run(stream).fold(
-                (value, s) -> star(parser).map(rest -> {value.addAll(rest); return value; }).run(s),
-                (error, s) -> new Success(new ArrayList<>(), stream)));
+        return new Parser(stream -> repeat(parser, Rope.EMPTY, stream));
     }
 
     /**
      * Returns a Parser that matches the input Parser 1 or more times.
      * Behaves like the regex modifier '+'.
+     * Repetitions after the first are matched like star().
      *
      * @param parser The Parser to attempt.
      * @return A Parser that matches the input Parser 1 or more times.
      */
     static Parser plus(Parser parser) {
         return new Parser(stream -> parser.run(stream).fold(
-                (value, s) -> star(parser).map(rest -> { value.addAll(rest); return value; }).run(s),
-                (error, s) -> {
-                    error.add(0, Symbol.value("'Plus' parser failed: "));
-                    return new Failure(error, stream);
-                }));
+                (value, s) -> s.cursor() == stream.cursor() ? new Success(value, s) : repeat(parser, value, s),
+                (error, s) -> new Failure(error, s)));
+    }
+
+    /**
+     * Applies a Parser as many times as it will succeed, appending the value of each Success to the given Rope.
+     *
+     * @param parser The Parser to repeat.
+     * @param values The Rope to append values to.
+     * @param stream The Stream to start parsing from.
+     * @return A Success with the appended Rope, whose rest is the Stream after the last repetition,
+     *         or the Failure of a repetition that a cut committed.
+     */
+    private static Result repeat(Parser parser, Rope values, Stream stream) {
+        int choice = choose(stream);
+        Result result = parser.run(stream);
+        boolean committed = release(stream, choice);
+        while (result instanceof Success && result.rest.cursor() != stream.cursor()) {
+            values = values.append(result.value);
+            stream = result.rest;
+            choice = choose(stream);
+            result = parser.run(stream);
+            committed = release(stream, choice);
+        }
+        return committed && result instanceof Failure ? result : new Success(values, stream);
+    }
+
+    /**
+     * Returns a Parser for the expressions of a named rule made of operands and the operators of a precedence table.
+     * Expressions are parsed by precedence climbing: one loop per operand reads operators and their right operands,
+     * so an operand is parsed once no matter how many precedence levels there are.
+     *
+     * Each application of an operator becomes a node of the rule, whose children are the operands and the operator,
+     * in the order they appear in the input. The outermost application is left to the rule's own Parser, so the
+     * Parser should be wrapped by rule(). An expression without operators is just its operand.
+     * Prefix operators may precede any operand, and bind their operand as tightly as their precedence.
+     * If the operand after an operator fails to parse, the operator is not applied and is left for the rest of the input,
+     * unless a cut committed the operator, in which case the expression fails.
+     *
+     * @param name The name of the rule.
+     * @param number The number of the rule, used to look up its semantic action.
+     * @param operand The Parser for operands.
+     * @param table The operators, in the order they are tried. Operators must not match the empty string.
+     * @return A Parser for the rule's expressions.
+     */
+    static Parser operators(String name, int number, Parser operand, Operator[] table) {
+        return new Parser(stream -> operators(name, number, operand, table, 0, false, stream));
+    }
+
+    /**
+     * Parses an expression of operators whose binary operators have at least the given precedence.
+     * See operators(). Also used by compiled grammars.
+     *
+     * @param name The name of the rule.
+     * @param number The number of the rule.
+     * @param operand The Parser for operands.
+     * @param table The operators.
+     * @param min The lowest precedence of a binary operator that may be applied.
+     * @param node Whether an application of an operator should be returned as a node of the rule.
+     * @param stream The Stream to parse.
+     * @return The Result of the expression.
+     */
+    static Result operators(String name, int number, Parser operand, Operator[] table, int min, boolean node, Stream stream) {
+        Result left = null;
+        Result failure = null;
+        for (Operator operator : table) {
+            if (operator.kind != Operator.Kind.PREFIX) {
+                continue;
+            }
+            int choice = choose(stream);
+            Result applied = operator.parser.run(stream);
+            if (applied instanceof Success) {
+                Result argument = nest(applied.rest, s -> operators(name, number, operand, table, operator.precedence, true, s));
+                applied = argument instanceof Success
+                        ? new Success(applied.value.append(argument.value), argument.rest)
+                        : argument;
+            }
+            if (release(stream, choice) && applied instanceof Failure) {
+                return applied;
+            }
+            if (applied instanceof Success) {
+                left = applied;
+                break;
+            }
+            if (failure == null || applied.rest.cursor() > failure.rest.cursor()) {
+                failure = applied;
+            }
+        }
+        boolean application = left != null;
+        if (left == null) {
+            left = operand.run(stream);
+            if (left instanceof Failure) {
+                return failure != null && failure.rest.cursor() > left.rest.cursor() ? failure : left;
+            }
+        }
+        while (true) {
+            Result applied = null;
+            for (Operator operator : table) {
+                if (operator.kind == Operator.Kind.PREFIX || operator.precedence < min) {
+                    continue;
+                }
+                int choice = choose(left.rest);
+                Result symbol = operator.parser.run(left.rest);
+                Result right = symbol;
+                if (symbol instanceof Success) {
+                    int next = operator.kind == Operator.Kind.LEFT ? operator.precedence + 1 : operator.precedence;
+                    right = nest(symbol.rest, s -> operators(name, number, operand, table, next, true, s));
+                }
+                if (release(stream, choice) && right instanceof Failure) {
+                    return right;
+                }
+                if (right instanceof Success) {
+                    if (application) {
+                        left = rule(name, number, stream, left);
+                    }
+                    applied = new Success(left.value.append(symbol.value).append(right.value), right.rest);
+                    break;
+                }
+            }
+            if (applied == null) {
+                return node && application ? rule(name, number, stream, left) : left;
+            }
+            left = applied;
+            application = true;
+        }
+    }
+
+    /**
+     * Parses the operand of an operator, which may itself apply operators, nested inside of the operators
+     * being applied so that long chains of them do not overflow the stack. See ParseContext.nest().
+     *
+     * @param stream The Stream to parse.
+     * @param operand Parses the operand.
+     * @return The Result of the operand.
+     */
+    private static Result nest(Stream stream, Function<Stream, Result> operand) {
+        ParseContext context = stream.getContext();
+        return context == null ? operand.apply(stream) : context.nest(stream, operand);
+    }
+
+    /** An operator of a precedence table. See operators(). */
+    static final class Operator {
+        /** How an operator is applied: as a left- or right-associative binary operator, or as a prefix operator. */
+        enum Kind { LEFT, RIGHT, PREFIX }
+
+        final Parser parser;
+        /** Operators of higher precedence bind more tightly. */
+        final int precedence;
+        final Kind kind;
+
+        /**
+         * Constructor.
+         * @param parser The Parser for the operator.
+         * @param precedence The precedence of the operator. Must not be negative.
+         * @param kind How the operator is applied.
+         */
+        Operator(Parser parser, int precedence, Kind kind) {
+            this.parser = parser;
+            this.precedence = precedence;
+            this.kind = kind;
+        }
     }
 
     /**
      * Parser Supplier that returns a Parser that matches the input string.
+     * The string is compared to the input in one pass, and the output Parser succeeds with the string as a single
+     * terminal. If it fails, its error is the quoted string, and the character where the input stopped matching
+     * is reported as expected, as if each character had been matched by its own accept() Parser.
+     *
      * @param str The string that the Parser should match.
      * @return A Parser that matches the input string.
      */
@@ -168,21 +467,31 @@ abstract class Combinators {
         if (str.length() == 0) {
             return always("");
         }
-        Parser[] list = new Parser[str.length()];
+        Rope label = Rope.of(Symbol.value("\"" + str + "\""));
+        Rope[] chars = new Rope[str.length()];
         for (int i = 0; i < str.length(); i++) {
-            list[i] = accept(str.charAt(i));
+            chars[i] = Rope.of(Symbol.value("\"" + str.charAt(i) + "\""));
         }
-        // As an exercise in functional programming, the following line has the same functionality
-        // as the above 4 (Why is the loop preferable, other than readability? What space/time comparisons are there?):
-        // list = str.chars().mapToObj(c -> accept((char) c)).toArray((IntFunction<Parser[]>) Parser[]::new);
+        return new Parser(stream -> string(str, label, chars, stream));
+    }
 
-        return sequence(list).bimap(
-                v -> v,
-                e -> {
-                    e.add(0, Symbol.value("Failed to match \"" + str + "\": "));
-                    return e;
-                }
-        ).literal(); // Otherwise we would return [e, x, a, m, p, l, e] instead of [example].
+    /**
+     * Matches a string at the start of a Stream. See string(). Also used by compiled grammars.
+     *
+     * @param str The string to match. Must not be empty.
+     * @param label The error of a Failure to match, the quoted string.
+     * @param chars What each character of the string is reported as when the match fails at it.
+     * @param stream The Stream to match against.
+     * @return The Result of matching the string.
+     */
+    static Result string(String str, Rope label, Rope[] chars, Stream stream) {
+        int mismatch = stream.mismatch(str);
+        if (mismatch >= 0) {
+            Stream at = stream.move(mismatch);
+            fail(chars[mismatch], at);
+            return new Failure(label, at);
+        }
+        return new Success(Symbol.verbatim(str, stream.cursor()), stream.move(str.length()));
     }
 
     /**
@@ -196,17 +505,7 @@ abstract class Combinators {
         if (charSet.length() == 0) {
             return never("'set' failed: empty set");
         }
-        Parser[] list = new Parser[charSet.length()];
-        for (int i = 0; i < charSet.length(); i++) {
-            list[i] = accept(charSet.charAt(i));
-        }
-        return alternate(list).bimap(
-                v -> v,
-                e -> {
-                    e.add(0, Symbol.value("Failed to match character set \"" + charSet + "\": "));
-                    return e;
-                }
-        );
+        return charClass(CharClass.of(charSet), "character set \"" + charSet + "\"");
     }
 
     /**
@@ -217,34 +516,36 @@ abstract class Combinators {
      * @return A Parser that matches any character.
      */
     static Parser dot() {
-        return new Parser(stream -> stream.length() == 0
-                                    ? new Failure(Symbol.value("unexpected EOF"), stream)
-                                    : new Success(Symbol.value(stream.head()), stream.move(1)));
+        return charClass(CharClass.ANY, "any character");
     }
 
     /**
      * Returns a Parser that matches any character if the input Parser fails.
      * Because of its inflexibility, this combinator should only be used with input Parsers that only match one character.
      * It will still work with more complex input Parsers, but with behavior that is difficult to manage.
+     * If the input Parser is a single-character terminal, the output Parser is the terminal for the complement of its characters.
      *
      * @param parser The Parser to attempt.
      * @return A Parser that matches any character if the input Parser fails.
      */
     static Parser not(Parser parser) {
+        if (parser.getCharClass() != null) {
+            return charClass(parser.getCharClass().negate(), "any other character");
+        }
+        Rope matched = Rope.of(Symbol.value("any other input"));
+        Rope empty = Rope.of(Symbol.value("any character"));
         return new Parser(stream -> parser.run(stream).fold(
-                (value, s) -> { value.add(0, Symbol.value("'Not' parser failed; matched: "));
-                                return new Failure(value, stream); },
-                (error, s) -> stream.length() > 0
+                (value, s) -> fail(matched, stream),
+                (error, s) -> !stream.atEnd()
                                 ? new Success(Symbol.value(stream.head()), stream.move(1))
-                                : new Failure(Symbol.value("'Not' parser failed; empty stream"), stream)));
+                                : fail(empty, stream)));
     }
 
     static Parser nonConsumingNot(Parser parser) {
+        Rope matched = Rope.of(Symbol.value("any other input"));
         return new Parser(stream -> parser.run(stream).fold(
-                (value, s) -> {
-                    value.add(0, Symbol.value("Non-consuming Not parser failed; matched: "));
-                    return new Failure(value, stream); },
-                (error, s) -> new Success(new ArrayList<>(), s)));
+                (value, s) -> fail(matched, stream),
+                (error, s) -> new Success(Rope.EMPTY, s)));
     }
 
     /**
@@ -255,34 +556,103 @@ abstract class Combinators {
      * @return A Parser that matches only the given character.
      */
     private static Parser accept(char c) {
+        return charClass(CharClass.of(c), "\"" + c + "\"");
+    }
+
+    /**
+     * Parser supplier that returns a Parser which matches any one character of the given CharClass.
+     * accept, set, dot and not are all built on this Parser. Testing a character does not allocate,
+     * and the Symbols of matched ASCII characters are shared.
+     *
+     * @param chars The characters the output Parser should match.
+     * @param description A description of the characters, used as the error of the output Parser.
+     * @return A Parser that matches one character of the given class.
+     */
+    static Parser charClass(CharClass chars, String description) {
+        Rope label = Rope.of(Symbol.value(description));
         return new Parser(stream -> {
-            if (stream.length() == 0) {
-                return new Failure(Symbol.value("unexpected EOF"), stream);
-            }
-            String value = stream.head();
-            if (value.equals(((Character) c).toString())) {
-                return new Success(Symbol.value(value), stream.move(1));
+            if (!stream.atEnd()) {
+                char c = stream.head();
+                if (chars.matches(c)) {
+                    return new Success(Symbol.value(c), stream.move(1));
+                }
             }
-            return new Failure(Symbol.value("\"" + value + "\" did not match \"" + c + "\""), stream);
-        });
+            return fail(label, stream);
+        }, chars);
     }
 
     /**
      * A Parser supplier that returns a Parser that matches the given regex.
      * This and accept are the only Parser suppliers that produce consuming Parsers.
+     * The regex is compiled once, when the Parser is created, and matched in place against the Stream
+     * so that no part of the input is copied except the match itself.
+     * If the input is read lazily, the regex is matched against a window of the Stream that is widened
+     * for as long as the match depends on input beyond the end of the window.
+     *
      * @param regex The regex this Parser should match.
      * @return A Parser that matches the given regex.
+     * @throws java.util.regex.PatternSyntaxException if the regex is invalid.
      */
     static Parser regex(String regex) {
-        return new Parser(stream -> {
-            Matcher matcher = Pattern.compile("^"+ regex).matcher(stream.toString());
-            if (matcher.find()) {
-                return new Success(Symbol.value(matcher.group().replaceAll("\\\\/", "/")), stream.move(matcher.group().length()));
+        Pattern pattern = Pattern.compile(regex);
+        Rope label = Rope.of(Symbol.value("/" + regex + "/"));
+        return new Parser(stream -> regex(pattern, label, stream));
+    }
+
+    /**
+     * Matches a compiled regex at the start of a Stream. See regex(). Also used by compiled grammars.
+     *
+     * @param pattern The regex.
+     * @param label The error of a Failure to match.
+     * @param stream The Stream to match against.
+     * @return The Result of matching the regex.
+     */
+    static Result regex(Pattern pattern, Rope label, Stream stream) {
+        int size = REGEX_WINDOW;
+        Stream window = stream.window(size);
+        Matcher matcher = pattern.matcher(window);
+        boolean matched = matcher.lookingAt();
+        while (window != stream && matcher.hitEnd() && window.length() == size) {
+            size *= 2;
+            window = stream.window(size);
+            matched = matcher.reset(window).lookingAt();
+        }
+        if (matcher.hitEnd() && stream.getContext() != null) {
+            // the match depends on where the input ends
+            stream.getContext().examine(stream.cursor() + window.length());
+        }
+        if (matched) {
+            int start = stream.cursor();
+            int end = start + matcher.end();
+            if (!hasEscapedSlash(window, matcher.end())) {
+                return new Success(Symbol.span(stream.getSource(), start, end), stream.move(matcher.end()));
             }
-            return new Failure(Symbol.value("Failed to match regex: " + regex), stream);
-        });
+            String match = matcher.group().replace("\\/", "/");
+            return new Success(Symbol.value(match, start, end), stream.move(matcher.end()));
+        }
+        return fail(label, stream);
     }
 
+    /**
+     * Whether an escaped slash occurs in a match. Matches have their escaped slashes unescaped,
+     * so they are the only ones that cannot be left as spans of the input.
+     *
+     * @param match The Stream the match is at the start of.
+     * @param length The length of the match.
+     * @return True if the match contains a backslash followed by a slash.
+     */
+    private static boolean hasEscapedSlash(CharSequence match, int length) {
+        for (int i = 1; i < length; i++) {
+            if (match.charAt(i) == '/' && match.charAt(i - 1) == '\\') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The number of characters of lazily read input that a regex is first matched against. */
+    private static final int REGEX_WINDOW = 1024;
+
     /**
      * A Parser that matches only the end-of-input 'character'.
      * The output Parser of a ParserCombinator should always be concat(<start-symbol>, eof()).
@@ -290,9 +660,27 @@ abstract class Combinators {
      * @return A Parser that matches the end-of-input 'character'.
      */
     static Parser eof() {
-        return new Parser(stream -> stream.length() == 0
-                ? new Success(new ArrayList<>(), stream)
-                : new Failure(Symbol.value("'eof' failed: "), stream));
+        return new Parser(stream -> stream.atEnd()
+                ? new Success(Rope.EMPTY, stream)
+                : fail(END_OF_INPUT, stream));
+    }
+    private static final Rope END_OF_INPUT = Rope.of(Symbol.value("end of input"));
+
+    /**
+     * Gets the Failure of a terminal Parser, and records what the Parser expected in the run's ParseContext
+     * so that the final error can report everything that was expected at the farthest position reached.
+     * Takes constant time; the label is prepared when the Parser is built, so no message is formatted here.
+     *
+     * @param label What the failing Parser expected.
+     * @param stream The Stream the Parser failed on.
+     * @return A Failure with the label as its value.
+     */
+    static Result fail(Rope label, Stream stream) {
+        ParseContext context = stream.getContext();
+        if (context != null) {
+            context.expect(label, stream);
+        }
+        return new Failure(label, stream);
     }
 
     /**
@@ -303,12 +691,145 @@ abstract class Combinators {
      * A Supplier<Parser> is a function which takes no inputs and outputs a Parser; f : {} -> Parser.
      * Parsers which would require forward-declaration should be stored in a Map in an identifiable way,
      * and retrieved in the Parser declared before them by the Supplier () -> Map.get(identifier).
+     * The Supplier is only called once, the first time the output Parser is run, and its Parser is kept.
      *
      * @param parserSupplier A Supplier function that returns a Parser.
      * @return A Parser that matches the Parser returned by the input Supplier<Parser>.
      */
     static Parser delayed(Supplier<Parser> parserSupplier) {
-        return new Parser(stream -> parserSupplier.get().run(stream));
+        Parser[] resolved = new Parser[1];
+        return new Parser(stream -> {
+            // resolve the reference on first use, rather than on every call.
+            // Threads may race to resolve it, but they all get the same Parser, and a Parser's fields are final,
+            // so a thread that sees another's write also sees a fully built Parser.
+            Parser parser = resolved[0];
+            if (parser == null) {
+                parser = parserSupplier.get();
+                resolved[0] = parser;
+            }
+            return parser.run(stream);
+        });
+    }
+
+    /**
+     * Returns a Parser that memoizes the Results of the input Parser when the run it is used in is in packrat mode.
+     * The Result of the input Parser at each position of the input is computed at most once per run,
+     * so alternatives that backtrack over the same rule do not parse it again.
+     * In profiled runs, every application of the input Parser is also recorded in the run's Profile.
+     * Otherwise, the output Parser behaves exactly like the input Parser.
+     *
+     * @param rule A number identifying the input Parser. Must be unique among the memoized Parsers of a run.
+     * @param parser The Parser to memoize.
+     * @return A memoizing Parser.
+     */
+    static Parser memoize(int rule, Parser parser) {
+        Function<Stream, Result> body = parser::run;
+        return new Parser(stream -> memoize(rule, stream, body));
+    }
+
+    /**
+     * Applies a named rule as the Parser of memoize() does. Also used by compiled grammars,
+     * which call it only in packrat or profiled runs. The rule is nested inside of the rules being run. See ParseContext.nest().
+     *
+     * @param rule The number of the rule.
+     * @param stream The Stream to apply the rule to.
+     * @param body Runs the rule.
+     * @return The Result of the rule.
+     */
+    static Result memoize(int rule, Stream stream, Function<Stream, Result> body) {
+        ParseContext context = stream.getContext();
+        if (context == null) {
+            return body.apply(stream);
+        }
+        if (!context.isPackrat() && context.getProfile() == null) {
+            return context.nest(stream, body);
+        }
+        Profile profile = context.getProfile();
+        Result result = context.isPackrat() ? context.recall(rule, stream) : null;
+        if (result != null) {
+            if (profile != null) {
+                profile.hit(rule, result);
+            }
+            return result;
+        }
+        boolean cuts = context.isPackrat() && context.hasCuts();
+        int outer = cuts ? context.enterRule() : 0;
+        if (profile != null) {
+            profile.enter(rule);
+        }
+        result = context.nest(stream, body);
+        if (profile != null) {
+            profile.exit(rule, result);
+        }
+        if (cuts) {
+            context.memoize(rule, stream, result, outer);
+        } else if (context.isPackrat()) {
+            context.memoize(rule, stream, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the Parser for a named rule of a grammar.
+     * In runs that build a parse tree, the output Parser behaves like parser.parent(name).
+     * In runs with semantic actions, the rule's action is applied to the values of the rule's children,
+     * and a single Symbol holding the action's result replaces the rule's value.
+     * A rule with no action passes the values of its children through unchanged. See semanticValues().
+     *
+     * @param name The name of the rule.
+     * @param number The number of the rule, used to look up its semantic action.
+     * @param parser The Parser for the rule's productions.
+     * @return A Parser for the named rule.
+     */
+    static Parser rule(String name, int number, Parser parser) {
+        return new Parser(stream -> rule(name, number, stream, parser.run(stream)));
+    }
+
+    /**
+     * The map applied by the Parser of a named rule, for rules that have already been run. See rule().
+     * Also used by compiled grammars.
+     *
+     * @param name The name of the rule.
+     * @param number The number of the rule.
+     * @param stream The Stream the rule was run on.
+     * @param result The Result of the rule's productions.
+     * @return The Result of the named rule.
+     */
+    static Result rule(String name, int number, Stream stream, Result result) {
+        ParseContext context = stream.getContext();
+        if (context == null || !context.hasActions()) {
+            return Parser.parent(name, stream, result);
+        }
+        Function<List<Object>, Object> action = context.getAction(number);
+        if (action == null) {
+            return result;
+        }
+        return result.map(rope -> Rope.of(Symbol.semantic(
+                action.apply(semanticValues(rope)), stream.cursor(), result.rest.cursor())));
+    }
+
+    /**
+     * Gets the values that a semantic action receives for a Rope of children.
+     * Terminals become their String value, and the results of other actions are passed as they are.
+     *
+     * @param rope The value of a Success in a run with semantic actions.
+     * @return The semantic values of the Symbols in the Rope, in order.
+     */
+    static List<Object> semanticValues(Rope rope) {
+        List<Object> values = new ArrayList<>(rope.size());
+        for (Symbol symbol : rope) {
+            switch (symbol.getType()) {
+                case SEMANTIC:
+                    values.add(symbol.getSemanticValue());
+                    break;
+                case VALUE:
+                    values.add(symbol.getValue());
+                    break;
+                default:
+                    break; // markers and nonterminals only appear in runs that build a parse tree
+            }
+        }
+        return values;
     }
 
     /**
@@ -321,9 +842,9 @@ abstract class Combinators {
         // parse tree through use of .ignore() to remove syntax sugar of the BNF
         // as well as skipping redundant single-child chains.
         // Based on the BNF grammar on the BNF wikipedia page.
-        Parser digit = set("0123456789");
-        Parser letter = set("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz");
-        Parser symbol = set("| !#$%&()*+,-./:;>=<?@[\\]^_`{}~");
+        Parser digit = charClass(CharClass.of("0123456789"), "digit");
+        Parser letter = charClass(CharClass.of("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"), "letter");
+        Parser symbol = charClass(CharClass.of("| !#$%&()*+,-./:;>=<?@[\\]^_`{}~"), "symbol");
         Parser character = alternate(letter, digit, symbol);
         Parser character1 = alternate(character, accept('\''));
         Parser character2 = alternate(character, accept('"'));
@@ -333,37 +854,41 @@ abstract class Combinators {
         Parser opt_whitespace = star(accept(' ')).ignore();
         Parser line_end = concat(opt_whitespace, alternate(string("\n"), string(System.lineSeparator()), eof())).ignore();
 
+        Rope unclosed = Rope.of(Symbol.value("closing '/' of regex"));
+        Rope regexLabel = Rope.of(Symbol.value("regex"));
+        Rope literalLabel = Rope.of(Symbol.value("literal"));
+        Rope ruleNameLabel = Rope.of(Symbol.value("rule name"));
         // I highly recommend collapsing the lambda code block in the following line for readability.
         Parser regex = sequence(accept('/').ignore(), new Parser(stream -> {
             Stream s = stream;
             StringBuilder ret = new StringBuilder();
-            for (String head = s.head(); !head.equals("/"); s = s.move(1), head = s.head()) {
-                if (head.equals("\\")) {
+            for (char head = s.head(); head != '/'; s = s.move(1), head = s.head()) {
+                if (head == '\\') {
                     s = s.move(1);
                     head = s.head();
-                    if (!head.equals("/")) { // if the user was attempting to escape a character that isn't /
+                    if (head != '/') { // if the user was attempting to escape a character that isn't /
                         // escape it again.
-                        ret.append("\\");
+                        ret.append('\\');
                     }
                 }
                 ret.append(head);
                 if (line_end.run(s.move(1)) instanceof Result.Success) {
-                    return new Result.Failure(Symbol.value("Unclosed regex in grammar!"), s);
+                    return fail(unclosed, s.move(1));
                 }
             }
             return new Result.Success(Symbol.value(ret.toString()), s);
         }), accept('/').ignore())
                 .bimap(
                         v -> v,
-                        e -> { e.clear(); e.add(Symbol.value("Couldn't match 'regex' pattern")); return e; }).parent("regex");
+                        e -> regexLabel).parent("regex");
         Parser literal = alternate(sequence(accept('"').ignore(), text1, accept('"').ignore()),
                 sequence(accept('\'').ignore(), text2, accept('\'').ignore())).literal().bimap(
                 v -> v,
-                e -> { e.clear(); e.add(Symbol.value("Couldn't match 'literal' pattern")); return e; }).parent("literal");
+                e -> literalLabel).parent("literal");
         Parser rule_name = sequence(accept('<').ignore(), concat(letter, star(rule_char)).literal().parent("rule-name"), accept('>').ignore())
                 .bimap(
                         v -> v,
-                        e -> { e.clear(); e.add(Symbol.value("Couldn't match 'rule name' pattern")); return e; });
+                        e -> ruleNameLabel);
         Parser multOptions = set("?*+");
         Parser literalOption = accept('l');
         Parser ignoreOption = accept('i');
@@ -372,16 +897,26 @@ abstract class Combinators {
         Parser ruleOption = alternate(literalOption, ignoreOption);
         Parser lhsDef = concat(rule_name.literal(), maybe(ruleOption)).parent("left-hand-side");
 
-        Parser term = concat(alternate(literal, rule_name, regex), termOptions).parent("term");
+        // a cut takes no option
+        Parser cut = string("^").parent("cut");
+        Parser term = alternate(concat(alternate(literal, rule_name, regex), termOptions), cut).parent("term");
         Parser list = concat(term, star(concat(opt_whitespace, term))).parent("list");
         Parser expr = concat(list, star(sequence(
                 opt_whitespace, string("|").ignore(),
                 opt_whitespace, list))).parent("expression");
+        // an operand, then the levels of a precedence table from loosest to tightest: % left '+' '-' % prefix '-'
+        Parser fixity = alternate(string("left"), string("right"), string("prefix")).parent("fixity");
+        Parser level = sequence(
+                opt_whitespace, accept('%').ignore(),
+                opt_whitespace, fixity,
+                plus(concat(opt_whitespace, term))).parent("level");
+        Parser operators = concat(term, plus(level)).parent("operators");
         Parser rule = sequence(
                 opt_whitespace, lhsDef,
                 opt_whitespace, string("::=").ignore(),
-                opt_whitespace, expr,
+                opt_whitespace, alternate(operators, expr),
                 line_end).parent("rule");
-        return concat(plus(rule).parent("syntax"), eof()).bimap(v -> v, e -> {e.add( Symbol.value("Input did not end with a valid rule.")); return e; });
+        Rope invalid = Rope.of(Symbol.value("Input did not end with a valid rule."));
+        return concat(plus(rule).parent("syntax"), eof()).bimap(v -> v, e -> e.append(invalid));
     }
 }
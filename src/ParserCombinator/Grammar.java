@@ -0,0 +1,532 @@
+package ParserCombinator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ParserCombinator.ParseTree.Node;
+
+import static ParserCombinator.Combinators.getBNFParser;
+
+/**
+ * A BNF grammar, read into a plain description of its rules.
+ *
+ * A Grammar is what ParserCombinator builds its Parsers from, and what GrammarCompiler generates Java source from,
+ * so both always agree on what a grammar means.
+ * Rules are numbered in the order they are defined. The number of a rule identifies it in packrat memo tables
+ * and among semantic actions.
+ *
+ * A Grammar also knows which characters each production can start with (its FIRST set), so that alternation
+ * can skip the productions that cannot match the next character, and what a skipped production would have
+ * reported as expected had it been tried. See Combinators.dispatch().
+ *
+ * A production may contain cuts, written '^'. A cut matches the empty string and commits the innermost
+ * choice that is being tried, so that if the choice fails, its alternatives are not tried. See Combinators.cut().
+ *
+ * @author Max Kopinsky
+ */
+final class Grammar {
+    /** The rules of the grammar, indexed by rule number. */
+    final List<Rule> rules;
+    /** The number of the start rule, which is the only rule not referenced by another rule. */
+    final int start;
+    /** The FIRST set of each rule, indexed by rule number. */
+    private final First[] firsts;
+    /** The FIRST sets of regexes, by regex. */
+    private final Map<String, First> regexFirsts = new HashMap<>();
+    /**
+     * Whether a cut in each rule can commit a choice outside of the rule, indexed by rule number,
+     * or null if the grammar has no cuts. See escapes().
+     */
+    final boolean[] cuts;
+
+    private Grammar(List<Rule> rules, int start) {
+        this.rules = Collections.unmodifiableList(rules);
+        this.start = start;
+        firsts = new First[rules.size()];
+        for (int i = 0; i < firsts.length; i++) {
+            firsts[i] = new First();
+        }
+        // FIRST sets of recursive rules depend on each other, so grow them all until none changes
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Rule rule : rules) {
+                First first = new First();
+                for (List<Term> production : rule.alternatives()) {
+                    first.add(first(production));
+                }
+                changed |= firsts[rule.number].add(first);
+            }
+        }
+        for (Rule rule : rules) {
+            if (rule.levels == null) {
+                continue;
+            }
+            for (Level level : rule.levels) {
+                for (Term operator : level.operators) {
+                    if (first(operator).nullable) {
+                        throw new IllegalArgumentException("The operators of <" + rule.name + "> must not match the empty string.");
+                    }
+                }
+            }
+        }
+        cuts = escapes();
+    }
+
+    /**
+     * Finds the rules in which a cut can commit a choice outside of the rule: those with a single production
+     * holding a cut or such a rule, without a '?', '*' or '+' flag. Only these rules have to repeat their cut
+     * when their Result is recalled from the memo table, since the cuts of other rules commit choices of their own.
+     * A successful application of such a rule always ran its cut.
+     *
+     * @return Whether each rule can commit a choice outside of itself, or null if the grammar has no cuts.
+     */
+    private boolean[] escapes() {
+        boolean hasCuts = false;
+        for (Rule rule : rules) {
+            for (List<Term> production : rule.productions) {
+                for (Term term : production) {
+                    hasCuts |= term.kind == Term.Kind.CUT;
+                }
+            }
+        }
+        if (!hasCuts) {
+            return null;
+        }
+        boolean[] escapes = new boolean[rules.size()];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Rule rule : rules) {
+                if (escapes[rule.number] || rule.levels != null || rule.productions.size() != 1) {
+                    continue;
+                }
+                for (Term term : rule.productions.get(0)) {
+                    boolean choice = "?".equals(term.option) || "*".equals(term.option) || "+".equals(term.option);
+                    if (term.kind == Term.Kind.CUT || (term.kind == Term.Kind.RULE && !choice && escapes[number(term.text)])) {
+                        escapes[rule.number] = true;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return escapes;
+    }
+
+    /**
+     * Reads a grammar in BNF form.
+     *
+     * @param BNFGrammar The grammar to read.
+     * @return The rules of the grammar.
+     * @throws IllegalArgumentException if the grammar is invalid.
+     * @throws IllegalStateException if every rule is referenced by another rule, so there is no start rule.
+     */
+    static Grammar parse(String BNFGrammar) {
+        Parser syntax = getBNFParser();
+        ParseTree grammar =  new ParseTree(syntax.run(new Stream(BNFGrammar, new ParseContext(false))));
+        if (!grammar.assertSuccess()) {
+            throw new IllegalArgumentException("Failed to parse the input grammar. " + grammar);
+        }
+
+        int startCount = 0;
+        String startSymbol = null;
+
+        // todo: throw an error if a rule is left-recursive
+        // todo: builtin parsers: <ws>, <line-end>, <set>[]
+        //<editor-fold desc="Identify the start symbol. Throws errors if one can't be found or if there are multiple.">
+        List<String> referencedRules = new ArrayList<>();
+        List<String> definedRules = new ArrayList<>();
+        for (Node rule : grammar.getRoot()) {
+            String defName = rule.getChild().getChild().getValue(); // rule -> lhs -> name
+            if (definedRules.contains(defName)) {
+                throw new IllegalArgumentException("A rule was defined twice. Alternation should be declared with '|' characters.");
+            }
+            definedRules.add(defName);
+            for (Node potentialReference : terms(rule.getChild(1))) {
+                if (potentialReference.getChild().getValue().equals("rule-name")) {
+                    String ruleName = potentialReference.getChild().getChild().getValue();
+                    if (!referencedRules.contains(ruleName) && !ruleName.equals(defName)) {
+                        referencedRules.add(ruleName);
+                    }
+                }
+            }
+        }
+        for (String rule : referencedRules) {
+            if (!definedRules.contains(rule)) {
+                throw new IllegalArgumentException("The rule <" + rule + "> is referenced but never defined.");
+            }
+        }
+        for (String rule : definedRules) {
+            if (!referencedRules.contains(rule)) {
+                startCount++;
+                if (startCount > 1) { throw new IllegalArgumentException("More than one potential start symbol (unreferenced rule)"); }
+                startSymbol = rule;
+            }
+        }
+        if (startCount == 0) {
+            throw new IllegalStateException("No potential start symbol (all nonterminals are reference in other productions)");
+        }
+        //</editor-fold>
+
+        List<Rule> rules = new ArrayList<>();
+        for (Node rule : grammar.getRoot()) {
+            String ruleName = rule.getChild().getChild().getValue(); // rule -> lhs -> name
+            Node body = rule.getChild(1);
+            List<List<Term>> productions = new ArrayList<>();
+            List<Level> levels = null;
+            if (body.getValue().equals("operators")) {
+                // operators -> operand term, level...; level -> fixity, operator term...
+                productions.add(Collections.singletonList(term(body.getChild())));
+                levels = new ArrayList<>();
+                for (Node level = body.getChild().getSibling(); level != null; level = level.getSibling()) {
+                    Node fixity = level.getChild();
+                    List<Term> operators = new ArrayList<>();
+                    for (Node term = fixity.getSibling(); term != null; term = term.getSibling()) {
+                        operators.add(term(term));
+                    }
+                    levels.add(new Level(Level.kind(fixity.getChild().getValue()), Collections.unmodifiableList(operators)));
+                }
+                levels = Collections.unmodifiableList(levels);
+            } else {
+                for (Node list : body) {
+                    List<Term> sequence = new ArrayList<>();
+                    for (Node term : list) {
+                        sequence.add(term(term));
+                    }
+                    productions.add(Collections.unmodifiableList(sequence));
+                }
+            }
+            Node option = rule.getChild().getChild(1);
+            rules.add(new Rule(ruleName, rules.size(), option == null ? null : option.getValue(),
+                    Collections.unmodifiableList(productions), levels));
+        }
+        int start = 0;
+        while (!rules.get(start).name.equals(startSymbol)) {
+            start++;
+        }
+        return new Grammar(rules, start);
+    }
+
+    /**
+     * Gets the term nodes of the body of a rule, in order.
+     * @param body An expression node, or an operators node.
+     * @return The term nodes of the body.
+     */
+    private static List<Node> terms(Node body) {
+        List<Node> terms = new ArrayList<>();
+        if (body.getValue().equals("operators")) {
+            terms.add(body.getChild());
+            for (Node level = body.getChild().getSibling(); level != null; level = level.getSibling()) {
+                for (Node term = level.getChild().getSibling(); term != null; term = term.getSibling()) {
+                    terms.add(term);
+                }
+            }
+        } else {
+            for (Node list : body) {
+                for (Node term : list) {
+                    terms.add(term);
+                }
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Reads a term node.
+     * @param term The term node.
+     * @return The Term.
+     */
+    private static Term term(Node term) {
+        Node termValue = term.getChild();
+        Node option = termValue.getSibling();
+        if (termValue.getValue().equals("cut")) {
+            return new Term(Term.Kind.CUT, "^", null);
+        }
+        // only the first flag of an option is applied
+        return new Term(Term.Kind.of(termValue.getValue()), termValue.getChild().getValue(),
+                option == null ? null : option.getChild().getValue());
+    }
+
+    /**
+     * Gets the number of the rule with the given name.
+     * @param name The name of the rule.
+     * @return The number of the rule, or -1 if the grammar has no such rule.
+     */
+    int number(String name) {
+        for (Rule rule : rules) {
+            if (rule.name.equals(name)) {
+                return rule.number;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the characters that a production can start with.
+     * @param production A production of one of this grammar's rules.
+     * @return The FIRST set of the production, or null if the production can match the empty string,
+     *         in which case it can never be skipped.
+     */
+    CharClass startsWith(List<Term> production) {
+        First first = first(production);
+        return first.nullable ? null : CharClass.of(first.low, first.high, first.nonAscii);
+    }
+
+    /**
+     * Gets what a production reports as expected when it fails at a character outside of its FIRST set:
+     * the labels of the terminals it tries at that position, in the order it tries them.
+     *
+     * @param production A production of one of this grammar's rules.
+     * @return The error labels of the production's first terminals.
+     */
+    List<String> expected(List<Term> production) {
+        List<String> labels = new ArrayList<>();
+        expected(production, labels, new HashSet<>());
+        return labels;
+    }
+    private void expected(List<Term> production, List<String> labels, Set<Integer> visiting) {
+        for (Term term : production) {
+            switch (term.kind) {
+                case LITERAL:
+                    if (!term.text.isEmpty()) {
+                        labels.add("\"" + term.text.charAt(0) + "\"");
+                    }
+                    break;
+                case REGEX:
+                    if (!regexFirst(term.text).nullable) {
+                        labels.add("/" + term.text + "/");
+                    }
+                    break;
+                case RULE:
+                    int number = number(term.text);
+                    if (visiting.add(number)) {
+                        for (List<Term> alternative : rules.get(number).alternatives()) {
+                            expected(alternative, labels, visiting);
+                            if (first(alternative).nullable) {
+                                break; // the rule succeeds here
+                            }
+                        }
+                        visiting.remove(number);
+                    }
+                    break;
+            }
+            if (!first(term).nullable) {
+                break; // the production fails here
+            }
+        }
+    }
+
+    /**
+     * Gets the FIRST set of a sequence of terms from the FIRST sets of rules computed so far.
+     * @param production The terms.
+     * @return The FIRST set of the terms.
+     */
+    private First first(List<Term> production) {
+        First first = new First();
+        first.nullable = true;
+        for (Term term : production) {
+            First next = first(term);
+            first.low |= next.low;
+            first.high |= next.high;
+            first.nonAscii |= next.nonAscii;
+            if (!next.nullable) {
+                first.nullable = false;
+                break;
+            }
+        }
+        return first;
+    }
+    private First first(Term term) {
+        First first;
+        switch (term.kind) {
+            case LITERAL:
+                first = new First();
+                if (term.text.isEmpty()) {
+                    first.nullable = true;
+                } else {
+                    first.addChar(term.text.charAt(0));
+                }
+                break;
+            case REGEX:
+                first = regexFirst(term.text);
+                break;
+            case CUT:
+                first = new First();
+                first.nullable = true;
+                break;
+            default:
+                first = firsts[number(term.text)];
+                break;
+        }
+        if ("?".equals(term.option) || "*".equals(term.option)) {
+            First optional = new First();
+            optional.add(first);
+            optional.nullable = true;
+            return optional;
+        }
+        return first;
+    }
+
+    /**
+     * Gets the FIRST set of a regex by trying it on each ASCII character. A character is in the set if the regex
+     * matches a non-empty string starting with it, or could if there were more input (see Matcher.hitEnd()).
+     * Any non-ASCII character is assumed to be in the set.
+     *
+     * @param regex The regex.
+     * @return The FIRST set of the regex.
+     */
+    private First regexFirst(String regex) {
+        return regexFirsts.computeIfAbsent(regex, r -> {
+            Pattern pattern = Pattern.compile(r);
+            First first = new First();
+            first.nullable = pattern.matcher("").lookingAt();
+            first.nonAscii = true;
+            for (char c = 0; c < 128; c++) {
+                Matcher matcher = pattern.matcher(String.valueOf(c));
+                if ((matcher.lookingAt() && matcher.end() > 0) || matcher.hitEnd()) {
+                    first.addChar(c);
+                }
+            }
+            return first;
+        });
+    }
+
+    /** The characters that a rule, production, or term can start with, and whether it can match the empty string. */
+    private static final class First {
+        long low;
+        long high;
+        boolean nonAscii;
+        boolean nullable;
+
+        void addChar(char c) {
+            if (c < 64) {
+                low |= 1L << c;
+            } else if (c < 128) {
+                high |= 1L << (c - 64);
+            } else {
+                nonAscii = true;
+            }
+        }
+
+        /**
+         * Adds the members of another FIRST set to this one.
+         * @return Whether this set changed.
+         */
+        boolean add(First other) {
+            boolean changed = (other.low & ~low) != 0 || (other.high & ~high) != 0
+                    || (other.nonAscii && !nonAscii) || (other.nullable && !nullable);
+            low |= other.low;
+            high |= other.high;
+            nonAscii |= other.nonAscii;
+            nullable |= other.nullable;
+            return changed;
+        }
+    }
+
+    /**
+     * A named rule: the alternation of its productions, each of which is a sequence of Terms.
+     * An operator rule instead has one production holding its operand, and a precedence table. See Combinators.operators().
+     */
+    static final class Rule {
+        final String name;
+        final int number;
+        /** The rule's option flag: "l" (literal), "i" (ignore), or null. */
+        final String option;
+        final List<List<Term>> productions;
+        /** The levels of an operator rule's precedence table, from loosest to tightest, or null if it is not an operator rule. */
+        final List<Level> levels;
+
+        Rule(String name, int number, String option, List<List<Term>> productions, List<Level> levels) {
+            this.name = name;
+            this.number = number;
+            this.option = option;
+            this.productions = productions;
+            this.levels = levels;
+        }
+
+        /**
+         * Gets what the rule tries at its start, in order: its prefix operators, if it has any, then its productions.
+         * @return Sequences of Terms, one of which the input at the start of the rule must begin with.
+         */
+        List<List<Term>> alternatives() {
+            if (levels == null) {
+                return productions;
+            }
+            List<List<Term>> alternatives = new ArrayList<>();
+            for (Level level : levels) {
+                if (level.kind == Combinators.Operator.Kind.PREFIX) {
+                    for (Term operator : level.operators) {
+                        alternatives.add(Collections.singletonList(operator));
+                    }
+                }
+            }
+            alternatives.addAll(productions);
+            return alternatives;
+        }
+    }
+
+    /** A level of an operator rule's precedence table: operators of the same precedence, applied the same way. */
+    static final class Level {
+        final Combinators.Operator.Kind kind;
+        final List<Term> operators;
+
+        Level(Combinators.Operator.Kind kind, List<Term> operators) {
+            this.kind = kind;
+            this.operators = operators;
+        }
+
+        /**
+         * Gets how the operators of a level are applied from its fixity in the grammar.
+         * @param fixity "left", "right", or "prefix".
+         * @return The Kind of the level's operators.
+         */
+        static Combinators.Operator.Kind kind(String fixity) {
+            switch (fixity) {
+                case "left": return Combinators.Operator.Kind.LEFT;
+                case "right": return Combinators.Operator.Kind.RIGHT;
+                default: return Combinators.Operator.Kind.PREFIX;
+            }
+        }
+    }
+
+    /** A regex, literal, or rule reference, with an optional flag, or a cut. */
+    static final class Term {
+        enum Kind {
+            REGEX, LITERAL, RULE, CUT;
+
+            /**
+             * Gets the Kind of a term from the name of its node in the grammar's ParseTree.
+             * @param node "regex", "literal", "cut", or "rule-name".
+             * @return The Kind of the term.
+             */
+            static Kind of(String node) {
+                switch (node) {
+                    case "regex": return REGEX;
+                    case "literal": return LITERAL;
+                    case "cut": return CUT;
+                    default: return RULE;
+                }
+            }
+        }
+
+        final Kind kind;
+        /** The regex, the literal string, the name of the referenced rule, or "^" for a cut. */
+        final String text;
+        /** The term's option flag: "?", "*", "+", "l" (literal), "i" (ignore), or null. */
+        final String option;
+
+        Term(Kind kind, String text, String option) {
+            this.kind = kind;
+            this.text = text;
+            this.option = option;
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package ParserCombinator;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles grammars to Java.
+ *
+ * The generated class has one method per rule, which calls the methods of the rules it references directly,
+ * and one method per production of a rule. Terminals are matched by static calls on patterns and labels that
+ * are prepared once, when the class is loaded. The generated methods produce exactly the Results that the Parsers
+ * built by new ParserCombinator(grammar) produce, so parse trees, semantic actions, listeners, packrat mode,
+ * and error messages all behave the same; only the closures of the combinators are gone.
+ *
+ * A grammar can be compiled ahead of time, by running this class:
+ * <pre>java ParserCombinator.GrammarCompiler &lt;grammar file&gt; &lt;class name&gt; [&lt;source directory&gt;]</pre>
+ * which writes the source of a class in the ParserCombinator package whose create() method returns the
+ * ParserCombinator for the grammar, without reading the grammar at runtime.
+ * A grammar can also be compiled at runtime with ParserCombinator.compile(), which uses the system Java compiler.
+ *
+ * @author Max Kopinsky
+ */
+final class GrammarCompiler {
+    /** Numbers the classes compiled at runtime, so that each has a unique name. */
+    private static final AtomicInteger compiled = new AtomicInteger();
+
+    /** The grammar being compiled. */
+    private final Grammar grammar;
+    /** The name of the generated class. */
+    private final String className;
+    /** The static fields of the generated class. */
+    private final StringBuilder fields = new StringBuilder();
+    /** The methods of the generated class. */
+    private final StringBuilder methods = new StringBuilder();
+    /** The number of static fields generated so far, used to name them. */
+    private int constants;
+    /** The number of local variables generated so far in the current method, used to name them. */
+    private int locals;
+
+    private GrammarCompiler(Grammar grammar, String className) {
+        this.grammar = grammar;
+        this.className = className;
+    }
+
+    /**
+     * Compiles a grammar file ahead of time.
+     * @param args The grammar file, the name of the class to generate, and optionally the source directory
+     *             to write it to (by default, the current directory). The class is written to the ParserCombinator
+     *             package of the source directory.
+     * @throws IOException if the grammar cannot be read or the class cannot be written.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java ParserCombinator.GrammarCompiler <grammar file> <class name> [<source directory>]");
+            System.exit(1);
+        }
+        String BNFGrammar = new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8);
+        Path out = Paths.get(args.length > 2 ? args[2] : ".", "ParserCombinator", args[1] + ".java");
+        Files.createDirectories(out.getParent());
+        Files.write(out, generate(Grammar.parse(BNFGrammar), args[1]).getBytes(StandardCharsets.UTF_8));
+        System.out.println("Wrote " + out);
+    }
+
+    /**
+     * Generates the source of a class that parses a grammar.
+     *
+     * @param grammar The grammar to compile.
+     * @param className The name of the class. It is public and in the ParserCombinator package.
+     * @return The Java source of the class.
+     */
+    static String generate(Grammar grammar, String className) {
+        return new GrammarCompiler(grammar, className).generate();
+    }
+
+    /**
+     * Compiles a grammar with the system Java compiler and loads it into the ParserCombinator package.
+     *
+     * @param grammar The grammar to compile.
+     * @return A ParserCombinator that runs the compiled grammar.
+     * @throws IllegalStateException if no Java compiler is available, or the generated class fails to compile.
+     */
+    static ParserCombinator load(Grammar grammar) {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            throw new IllegalStateException("No Java compiler is available to compile the grammar.");
+        }
+        String name = "CompiledGrammar" + compiled.incrementAndGet();
+        JavaFileObject source = new SimpleJavaFileObject(
+                URI.create("string:///ParserCombinator/" + name + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return generate(grammar, name);
+            }
+        };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager standard = javac.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8);
+        JavaFileManager files = new ForwardingJavaFileManager<JavaFileManager>(standard) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+                                                       FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("bytes:///" + className.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return bytes;
+                    }
+                };
+            }
+        };
+        List<String> options = Arrays.asList("-classpath", classPath(), "-proc:none");
+        boolean success = javac.getTask(null, files, diagnostics, options, null, Arrays.asList(source)).call();
+        if (!success) {
+            throw new IllegalStateException("Failed to compile the grammar: " + diagnostics.getDiagnostics());
+        }
+        try {
+            // defined by this class's Lookup, so the compiled class shares this package and can use its internals
+            Class<?> loaded = MethodHandles.lookup().defineClass(bytes.toByteArray());
+            return (ParserCombinator) loaded.getMethod("create").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to load the compiled grammar.", e);
+        }
+    }
+
+    /**
+     * Gets the class path that compiled grammars are compiled against: where this package was loaded from,
+     * followed by the class path of the JVM.
+     * @return The class path.
+     */
+    private static String classPath() {
+        String path = System.getProperty("java.class.path");
+        CodeSource self = GrammarCompiler.class.getProtectionDomain().getCodeSource();
+        if (self == null) {
+            return path;
+        }
+        try {
+            return Paths.get(self.getLocation().toURI()) + File.pathSeparator + path;
+        } catch (URISyntaxException e) {
+            return path;
+        }
+    }
+
+    /**
+     * Generates the source of the class.
+     * @return The Java source of the class.
+     */
+    private String generate() {
+        for (Grammar.Rule rule : grammar.rules) {
+            rule(rule);
+        }
+        List<String> names = new ArrayList<>();
+        List<String> parsers = new ArrayList<>();
+        List<String> cuts = new ArrayList<>();
+        for (Grammar.Rule rule : grammar.rules) {
+            names.add(quote(rule.name));
+            parsers.add("new Parser(" + className + "::rule" + rule.number + ")");
+            if (grammar.cuts != null) {
+                cuts.add(String.valueOf(grammar.cuts[rule.number]));
+            }
+        }
+        return "package ParserCombinator;\n\n"
+                + "import java.util.Arrays;\n"
+                + "import java.util.regex.Pattern;\n\n"
+                + "import ParserCombinator.Result.Failure;\n"
+                + "import ParserCombinator.Result.Success;\n\n"
+                + "/**\n"
+                + " * Parser for a grammar, generated by GrammarCompiler. Do not edit.\n"
+                + " */\n"
+                + "public final class " + className + " {\n"
+                + "    private " + className + "() {}\n\n"
+                + "    /**\n"
+                + "     * Gets a ParserCombinator for the grammar.\n"
+                + "     * @return A ParserCombinator that runs the generated Parsers.\n"
+                + "     */\n"
+                + "    public static ParserCombinator create() {\n"
+                + "        return new ParserCombinator(\n"
+                + "                Arrays.asList(" + String.join(", ", names) + "),\n"
+                + "                " + grammar.start + ",\n"
+                + "                Arrays.asList(" + String.join(",\n                        ", parsers) + "),\n"
+                + "                " + (grammar.cuts == null ? "null" : "new boolean[] {" + String.join(", ", cuts) + "}") + ");\n"
+                + "    }\n\n"
+                + fields
+                + methods
+                + "}\n";
+    }
+
+    /**
+     * Generates the methods of a rule: the rule itself, which nests its body inside of the rules being run,
+     * memoizes in packrat runs and records itself in profiled runs,
+     * its body, which applies the rule's flags and semantic action, and one method per production and per operator.
+     * @param rule The rule to generate.
+     */
+    private void rule(Grammar.Rule rule) {
+        int n = rule.number;
+        methods.append("\n    // <").append(rule.name).append(">\n")
+                .append("    static Result rule").append(n).append("(Stream stream) {\n")
+                .append("        ParseContext context = stream.getContext();\n")
+                .append("        if (context == null) {\n")
+                .append("            return body").append(n).append("(stream);\n")
+                .append("        }\n")
+                .append("        if (!context.isPackrat() && context.getProfile() == null) {\n")
+                .append("            return context.nest(stream, ").append(className).append("::body").append(n).append(");\n")
+                .append("        }\n")
+                .append("        return Combinators.memoize(").append(n).append(", stream, ").append(className)
+                .append("::body").append(n).append(");\n")
+                .append("    }\n\n");
+
+        methods.append("    private static Result body").append(n).append("(Stream stream) {\n");
+        List<Grammar.Term> operators = new ArrayList<>();
+        if (rule.levels != null) {
+            // precedence climbing over the operand (production 0) and one method per operator
+            List<String> table = new ArrayList<>();
+            for (int i = 0; i < rule.levels.size(); i++) {
+                Grammar.Level level = rule.levels.get(i);
+                for (Grammar.Term operator : level.operators) {
+                    table.add("new Combinators.Operator(new Parser(" + className + "::rule" + n + "o" + operators.size()
+                            + "), " + i + ", Combinators.Operator.Kind." + level.kind + ")");
+                    operators.add(operator);
+                }
+            }
+            String operand = constant("Parser", "new Parser(" + className + "::rule" + n + "p0)");
+            String operatorTable = constant("Combinators.Operator[]", "{" + String.join(", ", table) + "}");
+            methods.append("        Result result = Combinators.operators(").append(quote(rule.name)).append(", ").append(n)
+                    .append(", ").append(operand).append(", ").append(operatorTable).append(", 0, false, stream);\n");
+        } else if (rule.productions.size() == 1) {
+            methods.append("        Result result = rule").append(n).append("p0(stream);\n");
+        } else {
+            // alternation that skips the productions which cannot start with the next character
+            List<String> productions = new ArrayList<>();
+            List<String> firsts = new ArrayList<>();
+            List<String> labels = new ArrayList<>();
+            for (int k = 0; k < rule.productions.size(); k++) {
+                List<Grammar.Term> production = rule.productions.get(k);
+                productions.add("new Parser(" + className + "::rule" + n + "p" + k + ")");
+                CharClass first = grammar.startsWith(production);
+                firsts.add(first == null ? "null" : first.toSource());
+                List<String> expected = new ArrayList<>();
+                for (String label : grammar.expected(production)) {
+                    expected.add(label(label));
+                }
+                labels.add("{" + String.join(", ", expected) + "}");
+            }
+            String list = constant("Parser[]", "{" + String.join(", ", productions) + "}");
+            String firstSets = constant("CharClass[]", "{" + String.join(", ", firsts) + "}");
+            String expectedLabels = constant("Rope[][]", "{" + String.join(", ", labels) + "}");
+            methods.append("        Result result = Combinators.dispatch(").append(list).append(", ").append(firstSets)
+                    .append(", ").append(expectedLabels).append(", stream);\n");
+        }
+        if ("l".equals(rule.option)) {
+            methods.append("        result = Parser.literal(stream, result);\n");
+        }
+        methods.append("        result = Combinators.rule(").append(quote(rule.name)).append(", ").append(n)
+                .append(", stream, result);\n");
+        if ("i".equals(rule.option)) {
+            methods.append("        if (result instanceof Success) {\n")
+                    .append("            result = new Success(Rope.EMPTY, result.rest);\n")
+                    .append("        }\n");
+        }
+        methods.append("        return result;\n")
+                .append("    }\n");
+
+        for (int k = 0; k < rule.productions.size(); k++) {
+            production("rule" + n + "p" + k, rule.productions.get(k));
+        }
+        for (int k = 0; k < operators.size(); k++) {
+            production("rule" + n + "o" + k, Collections.singletonList(operators.get(k)));
+        }
+    }
+
+    /**
+     * Generates the method of a production, which matches its terms in sequence.
+     * @param method The name of the method.
+     * @param terms The terms of the production.
+     */
+    private void production(String method, List<Grammar.Term> terms) {
+        locals = 0;
+        methods.append("\n    private static Result ").append(method).append("(Stream stream) {\n");
+        if (terms.size() == 1) {
+            String result = term(terms.get(0), "stream");
+            methods.append("        return ").append(result).append(";\n")
+                    .append("    }\n");
+            return;
+        }
+        String stream = "stream";
+        String result = null;
+        for (int i = 0; i < terms.size(); i++) {
+            result = term(terms.get(i), stream);
+            methods.append("        if (").append(result).append(" instanceof Failure) {\n")
+                    .append("            return ").append(result).append(";\n")
+                    .append("        }\n");
+            if (i == 0) {
+                methods.append("        Rope values = ").append(result).append(".value;\n");
+            } else {
+                methods.append("        values = values.append(").append(result).append(".value);\n");
+            }
+            stream = result + ".rest";
+        }
+        methods.append("        return new Success(values, ").append(result).append(".rest);\n")
+                .append("    }\n");
+    }
+
+    /**
+     * Generates the statements that match a term and its flag.
+     * In grammars with cuts, each attempt of a '?' or '*' term is a choice that a cut can commit. See Combinators.cut().
+     *
+     * @param term The term to match.
+     * @param stream The expression of the Stream to match it on.
+     * @return The name of the local variable that holds the Result.
+     */
+    private String term(Grammar.Term term, String stream) {
+        String in = local("Stream", "in", stream);
+        String match = match(term);
+        boolean choice = grammar.cuts != null && ("?".equals(term.option) || "*".equals(term.option));
+        String committed = null;
+        if (choice) {
+            committed = "k" + locals;
+            methods.append("        int c").append(locals).append(" = Combinators.choose(").append(in).append(");\n");
+        }
+        String result = "r" + locals++;
+        methods.append("        Result ").append(result).append(" = ").append(String.format(match, in)).append(";\n");
+        if (choice) {
+            methods.append("        boolean ").append(committed).append(" = Combinators.release(").append(in)
+                    .append(", c").append(result.substring(1)).append(");\n");
+        }
+        if (term.option == null) {
+            return result;
+        }
+        switch (term.option) {
+            case "?":
+                methods.append("        if (").append(result).append(" instanceof Failure")
+                        .append(choice ? " && !" + committed : "").append(") {\n")
+                        .append("            ").append(result).append(" = new Success(Rope.EMPTY, ").append(in).append(");\n")
+                        .append("        }\n");
+                break;
+            case "*":
+                repeat(result, in, in, "Rope.EMPTY", match, committed);
+                break;
+            case "+":
+                methods.append("        if (").append(result).append(" instanceof Success && ")
+                        .append(result).append(".rest.cursor() != ").append(in).append(".cursor()) {\n");
+                repeat(result, in, result + ".rest", result + ".value", match, null);
+                methods.append("        }\n");
+                break;
+            case "l":
+                methods.append("        ").append(result).append(" = Parser.literal(").append(in).append(", ")
+                        .append(result).append(");\n");
+                break;
+            case "i":
+                methods.append("        if (").append(result).append(" instanceof Success) {\n")
+                        .append("            ").append(result).append(" = new Success(Rope.EMPTY, ")
+                        .append(result).append(".rest);\n")
+                        .append("        }\n");
+                break;
+        }
+        return result;
+    }
+
+    /**
+     * Generates a loop that matches a term for as long as it succeeds and consumes input. See Combinators.repeat().
+     *
+     * @param result The variable to store the Result in. It holds the Result of the first attempt.
+     * @param in The Stream the first attempt was made on, if none of it has been accepted.
+     * @param from The Stream to continue from.
+     * @param values The values accepted so far.
+     * @param match The format of the expression that matches the term once.
+     * @param committed In grammars with cuts, the variable holding whether a cut committed the first attempt,
+     *                  if it was made on the Stream to continue from. Otherwise null.
+     */
+    private void repeat(String result, String in, String from, String values, String match, String committed) {
+        boolean cuts = grammar.cuts != null;
+        int n = locals++;
+        String s = "s" + n;
+        String v = "v" + n;
+        methods.append("        {\n")
+                .append("            Stream ").append(s).append(" = ").append(from).append(";\n")
+                .append("            Rope ").append(v).append(" = ").append(values).append(";\n");
+        if (cuts) {
+            methods.append("            int choice;\n")
+                    .append("            boolean committed").append(from.equals(in) ? " = " + committed : "").append(";\n");
+        }
+        if (from.equals(in)) {
+            methods.append("            Result next = ").append(result).append(";\n");
+        } else {
+            attempt("            Result next", s, match);
+        }
+        methods.append("            while (next instanceof Success && next.rest.cursor() != ").append(s).append(".cursor()) {\n")
+                .append("                ").append(v).append(" = ").append(v).append(".append(next.value);\n")
+                .append("                ").append(s).append(" = next.rest;\n");
+        attempt("                next", s, match);
+        methods.append("            }\n");
+        if (cuts) {
+            methods.append("            ").append(result).append(" = committed && next instanceof Failure ? next : new Success(")
+                    .append(v).append(", ").append(s).append(");\n");
+        } else {
+            methods.append("            ").append(result).append(" = new Success(").append(v).append(", ").append(s).append(");\n");
+        }
+        methods.append("        }\n");
+    }
+
+    /**
+     * Generates an attempt of a repetition in a loop of repeat(). In grammars with cuts, the attempt is a choice,
+     * made with the variable choice, and whether a cut committed it is assigned to the variable committed.
+     *
+     * @param assign The indentation and the left-hand side of the assignment of the attempt's Result.
+     * @param stream The Stream to match on.
+     * @param match The format of the expression that matches the term once.
+     */
+    private void attempt(String assign, String stream, String match) {
+        if (grammar.cuts == null) {
+            methods.append(assign).append(" = ").append(String.format(match, stream)).append(";\n");
+            return;
+        }
+        String indent = assign.substring(0, assign.length() - assign.trim().length());
+        methods.append(indent).append("choice = Combinators.choose(").append(stream).append(");\n")
+                .append(assign).append(" = ").append(String.format(match, stream)).append(";\n")
+                .append(indent).append("committed = Combinators.release(").append(stream).append(", choice);\n");
+    }
+
+    /**
+     * Gets the expression that matches a term once, without its flag.
+     * @param term The term to match.
+     * @return A format string for the expression, with %1$s in place of the Stream to match on.
+     *         Anything else in the expression is a name, so the format string needs no escaping.
+     */
+    private String match(Grammar.Term term) {
+        switch (term.kind) {
+            case REGEX: {
+                String pattern = constant("Pattern", "Pattern.compile(" + quote(term.text) + ")");
+                String label = constant("Rope", label("/" + term.text + "/"));
+                return "Combinators.regex(" + pattern + ", " + label + ", %1$s)";
+            }
+            case CUT:
+                return "Combinators.cut(%1$s)";
+            case LITERAL: {
+                if (term.text.isEmpty()) {
+                    String empty = constant("Rope", label(""));
+                    return "new Success(" + empty + ", %1$s)";
+                }
+                String label = constant("Rope", label("\"" + term.text + "\""));
+                List<String> chars = new ArrayList<>();
+                for (char c : term.text.toCharArray()) {
+                    chars.add(label("\"" + c + "\""));
+                }
+                String text = constant("String", quote(term.text));
+                String charLabels = constant("Rope[]", "{" + String.join(", ", chars) + "}");
+                return "Combinators.string(" + text + ", " + label + ", " + charLabels + ", %1$s)";
+            }
+            default:
+                return "rule" + grammar.number(term.text) + "(%1$s)";
+        }
+    }
+
+    /**
+     * Declares a local variable, unless its value is already a simple name.
+     * @return The name of the variable, or the value if it is a simple name.
+     */
+    private String local(String type, String prefix, String value) {
+        if (value.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+            return value;
+        }
+        String name = prefix + locals++;
+        methods.append("        ").append(type).append(" ").append(name).append(" = ").append(value).append(";\n");
+        return name;
+    }
+
+    /**
+     * Declares a static final field of the generated class.
+     * @return The name of the field.
+     */
+    private String constant(String type, String value) {
+        String name = "C" + constants++;
+        fields.append("    private static final ").append(type).append(" ").append(name).append(" = ")
+                .append(value).append(";\n");
+        return name;
+    }
+
+    /**
+     * Gets the expression of a Rope holding an error label.
+     * @param text The label.
+     * @return A Java expression.
+     */
+    private static String label(String text) {
+        return "Rope.of(Symbol.value(" + quote(text) + "))";
+    }
+
+    /**
+     * Quotes a string as a Java string literal.
+     * @param text The string to quote.
+     * @return A Java expression equal to the string.
+     */
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            switch (c) {
+                case '"': quoted.append("\\\""); break;
+                case '\\': quoted.append("\\\\"); break;
+                case '\n': quoted.append("\\n"); break;
+                case '\r': quoted.append("\\r"); break;
+                case '\t': quoted.append("\\t"); break;
+                default:
+                    if (c < ' ') {
+                        quoted.append(String.format("\\%03o", (int) c));
+                    } else if (c > '~') {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
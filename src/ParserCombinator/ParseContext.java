@@ -0,0 +1,508 @@
+package ParserCombinator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Holds the state of a single call to ParserCombinator.run().
+ * Every Stream moved from the input Stream of a run shares the same ParseContext,
+ * so Parsers can reach it through the Stream they are given.
+ *
+ * A ParseContext is created at the start of a run and dropped when the run returns.
+ * It is never shared between runs, so it needs no synchronization even when runs happen concurrently.
+ *
+ * In runs of a grammar with cuts, a ParseContext also keeps a stack of the choices being tried, so that a cut
+ * can commit the innermost one. Once a cut leaves no choice that could start over before some position,
+ * memo entries before that position can never be used again, and are dropped as the memo table grows.
+ *
+ * Nested rule applications recurse on the Java stack, so a ParseContext also counts them, and runs each further
+ * SEGMENT of them on another thread with a stack of its own. See nest(). The threads of a run take turns,
+ * each waiting for the one it started, so its state is still only used by one thread at a time.
+ *
+ * @author Max Kopinsky
+ */
+class ParseContext {
+    /** Whether named rules should memoize their Results (packrat parsing). */
+    private boolean packrat;
+    /** Memoized Results of named rules, keyed by rule number and Stream cursor. */
+    private Map<Long, Result> memo;
+    /** The farthest position in the input at which a terminal Parser failed, or null if none has. */
+    private Stream farthest;
+    /** What the terminal Parsers that failed at the farthest position expected. */
+    private List<Rope> expected = new ArrayList<>();
+    /** The farthest position in the input that any Parser has examined. See examine(). */
+    private int reach = -1;
+    /** Rule Results of a previous parse that are still valid after an edit, or null. See ParserCombinator.reparse(). */
+    private ParseTree.Reuse reuse;
+    /** The counts of the rules applied in this run, or null if it is not profiled. */
+    private Profile profile;
+    /** The semantic action of each named rule, indexed by rule number, or null if this run builds a parse tree. */
+    private List<Function<List<Object>, Object>> actions;
+
+    /** The number of nested rule applications run on the thread that started the run, whose stack size is unknown. */
+    private static final int FIRST_SEGMENT = 32;
+    /** The number of nested rule applications run in each further segment. See nest(). */
+    private static final int SEGMENT = 1000;
+    /** The number of nested rule applications being run. */
+    private int nesting;
+    /** The number of nested rule applications at which the next one starts a new segment. */
+    private int limit = FIRST_SEGMENT;
+
+    /** The least size of the memo table at which memo entries before the last cut are dropped. */
+    private static final int MIN_PURGE = 1 << 12;
+    /** Whether a cut in each rule can commit a choice outside of the rule, or null if choices are not tracked. See Grammar.cuts. */
+    private boolean[] cuts;
+    /** The position each choice being tried started at, innermost last. */
+    private int[] choices = new int[32];
+    /** Whether each choice being tried has been committed by a cut, innermost last. */
+    private boolean[] committed = new boolean[32];
+    /** The number of choices being tried. */
+    private int depth;
+    /** The fewest choices that were being tried when a cut ran, since the innermost memoizing rule started. See cut(). */
+    private int cutDepth = Integer.MAX_VALUE;
+    /** Memo keys of Results whose rule ran a cut that committed a choice outside of the rule. */
+    private Set<Long> cutting;
+    /** The position before which no choice can start over, so that memo entries before it are no longer needed. */
+    private int dead;
+    /** The size of the memo table at which it is next purged of entries before the dead position. */
+    private int purgeAt = MIN_PURGE;
+
+    /**
+     * Constructor for runs that build a parse tree.
+     * @param packrat Whether named rules should memoize their Results during this run.
+     */
+    ParseContext(boolean packrat) {
+        this(packrat, null);
+    }
+
+    /**
+     * Constructor.
+     * @param packrat Whether named rules should memoize their Results during this run.
+     * @param actions The semantic action of each named rule, indexed by rule number,
+     *                or null if this run should build a parse tree instead.
+     */
+    ParseContext(boolean packrat, List<Function<List<Object>, Object>> actions) {
+        this.packrat = packrat;
+        this.actions = actions;
+        if (packrat) {
+            memo = new HashMap<>();
+        }
+    }
+
+    /**
+     * Getter for packrat.
+     * @return Whether named rules should memoize their Results during this run.
+     */
+    boolean isPackrat() {
+        return packrat;
+    }
+
+    /**
+     * Whether this run applies semantic actions instead of building a parse tree.
+     * @return True if named rules should apply their semantic actions.
+     */
+    boolean hasActions() {
+        return actions != null;
+    }
+
+    /**
+     * Gets the semantic action of a named rule.
+     * @param rule The number of the rule.
+     * @return The rule's semantic action, or null if it has none.
+     */
+    Function<List<Object>, Object> getAction(int rule) {
+        return actions.get(rule);
+    }
+
+    /**
+     * Records the failure of a terminal Parser. Only failures at the farthest position reached so far are kept,
+     * since those are the ones that explain why a parse stopped where it did.
+     * Recording takes constant time and does not allocate unless the expected item is new at that position.
+     *
+     * @param label What the Parser expected, as prepared when the Parser was built.
+     * @param stream The Stream the Parser failed on.
+     */
+    void expect(Rope label, Stream stream) {
+        if (farthest == null || stream.cursor() > farthest.cursor()) {
+            farthest = stream;
+            expected.clear();
+        }
+        if (stream.cursor() == farthest.cursor() && !expected.contains(label)) {
+            expected.add(label);
+        }
+    }
+
+    /**
+     * Getter for farthest.
+     * @return The Stream at the farthest position where a terminal Parser failed, or null if none has.
+     */
+    Stream getFarthest() {
+        return farthest;
+    }
+
+    /**
+     * Getter for expected.
+     * @return What the terminal Parsers that failed at the farthest position expected.
+     */
+    List<Rope> getExpected() {
+        return expected;
+    }
+
+    /**
+     * Records that a Parser looked at a position of the input, whether or not there was a character there.
+     * A rule's Result can only depend on the input from its start to the farthest position examined when it finished,
+     * which is what lets reparse() tell which Results of a previous parse an edit cannot have changed.
+     *
+     * @param position The position that was examined.
+     */
+    void examine(int position) {
+        if (position > reach) {
+            reach = position;
+        }
+    }
+
+    /**
+     * Getter for reach.
+     * @return The farthest position in the input that any Parser has examined so far, or -1 if none has.
+     */
+    int getReach() {
+        return reach;
+    }
+
+    /**
+     * Lets this run reuse the Results of a previous parse instead of parsing again. Requires packrat mode.
+     * @param reuse The rule Results of the previous parse that are still valid.
+     */
+    void setReuse(ParseTree.Reuse reuse) {
+        this.reuse = reuse;
+    }
+
+    /**
+     * Makes this run count how often each rule is applied and how long it takes.
+     * @param profile The Profile to record the counts in.
+     */
+    void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Getter for profile.
+     * @return The Profile that the rules applied in this run are recorded in, or null if this run is not profiled.
+     */
+    Profile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Makes this run track the choices being tried, so that cuts can commit them.
+     * @param cuts Whether a cut in each rule can commit a choice outside of the rule. See Grammar.cuts.
+     */
+    void setCuts(boolean[] cuts) {
+        this.cuts = cuts;
+        cutting = new HashSet<>();
+    }
+
+    /**
+     * Whether this run tracks the choices being tried.
+     * @return True if the grammar of this run has cuts.
+     */
+    boolean hasCuts() {
+        return cuts != null;
+    }
+
+    /**
+     * Starts trying a choice, such as an alternative of an alternation or a repetition of star().
+     * Every call that returns a choice must be followed by release() once the choice has been tried.
+     *
+     * @param position The position the choice starts at, where the input is parsed again if the choice fails.
+     * @return The choice, or -1 if this run does not track choices.
+     */
+    int choose(int position) {
+        if (cuts == null) {
+            return -1;
+        }
+        if (depth == choices.length) {
+            choices = Arrays.copyOf(choices, depth * 2);
+            committed = Arrays.copyOf(committed, depth * 2);
+        }
+        choices[depth] = position;
+        committed[depth] = false;
+        return depth++;
+    }
+
+    /**
+     * Finishes trying a choice, and every choice started inside of it.
+     * @param choice The choice returned by choose().
+     * @return Whether a cut committed the choice, in which case its alternatives must not be tried.
+     */
+    boolean release(int choice) {
+        depth = choice;
+        return committed[choice];
+    }
+
+    /**
+     * Runs a cut: commits the innermost choice being tried. If no choice is being tried, the cut commits
+     * the whole run. No choice can then start over before the first uncommitted choice, or before the cut
+     * if every choice is committed, so memo entries before that position become unnecessary.
+     *
+     * @param position The position of the cut.
+     */
+    void cut(int position) {
+        if (cuts == null) {
+            return;
+        }
+        if (depth > 0) {
+            committed[depth - 1] = true;
+        }
+        cutDepth = Math.min(cutDepth, depth);
+        // choices start at nondecreasing positions, so the outermost uncommitted choice starts first
+        int safe = position;
+        for (int i = 0; i < depth; i++) {
+            if (!committed[i]) {
+                safe = choices[i];
+                break;
+            }
+        }
+        dead = Math.max(dead, safe);
+    }
+
+    /**
+     * Starts running a memoizing rule, so that memoize() can tell whether the rule ran a cut that committed
+     * a choice outside of it.
+     * @return The state to pass to memoize().
+     */
+    int enterRule() {
+        int outer = cutDepth;
+        cutDepth = Integer.MAX_VALUE;
+        return outer;
+    }
+
+    /**
+     * Looks up the memoized Result of a rule at the position of the given Stream.
+     * In a reparse, a Result of the previous parse is used if the rule has not been run at this position yet.
+     * If running the rule committed a choice outside of it, recalling it commits the innermost choice again,
+     * so that packrat runs commit the same choices as other runs.
+     *
+     * @param rule The number of the rule.
+     * @param stream The Stream the rule was run on.
+     * @return The memoized Result, or null if the rule has not been run at this position.
+     */
+    Result recall(int rule, Stream stream) {
+        long key = key(rule, stream);
+        Result result = memo.get(key);
+        if (result == null && reuse != null) {
+            result = reuse.recall(rule, stream);
+            if (result != null) {
+                memo.put(key, result);
+                // reused Results are Successes, and a successful rule always runs the cuts that escape it
+                if (cuts != null && cuts[rule]) {
+                    cutting.add(key);
+                }
+            }
+        }
+        if (result != null && cuts != null && cuts[rule] && cutting.contains(key)) {
+            cut(stream.cursor());
+        }
+        return result;
+    }
+
+    /**
+     * Memoizes the Result of a rule at the position of the given Stream.
+     * Results are immutable, so the same Result is shared by every later lookup.
+     *
+     * @param rule The number of the rule.
+     * @param stream The Stream the rule was run on.
+     * @param result The Result of the rule.
+     */
+    void memoize(int rule, Stream stream, Result result) {
+        memo.put(key(rule, stream), result);
+    }
+
+    /**
+     * Memoizes the Result of a rule in a run with cuts, and finishes running the rule. See enterRule().
+     * When the memo table has grown enough since it was last purged, entries before the dead position are dropped.
+     *
+     * @param rule The number of the rule.
+     * @param stream The Stream the rule was run on.
+     * @param result The Result of the rule.
+     * @param outer The state returned by enterRule().
+     */
+    void memoize(int rule, Stream stream, Result result, int outer) {
+        long key = key(rule, stream);
+        memo.put(key, result);
+        if (cutDepth <= depth) {
+            cutting.add(key);
+        }
+        cutDepth = Math.min(cutDepth, outer);
+        if (memo.size() >= purgeAt) {
+            if (dead > 0) {
+                memo.keySet().removeIf(k -> (int) (long) k < dead);
+                cutting.removeIf(k -> (int) (long) k < dead);
+            }
+            purgeAt = Math.max(MIN_PURGE, memo.size() * 2);
+        }
+    }
+
+    /**
+     * Applies a rule, nested inside of the rules being run. Every SEGMENT nested applications, the rule starts a new
+     * segment: it is run on a Segment thread, which has a stack of its own, while this one waits for it.
+     * The depth of nesting that can be parsed therefore depends on the memory available rather than on the stack size
+     * of the calling thread. Anything the rule throws is thrown again on the calling thread.
+     *
+     * @param stream The Stream to apply the rule to.
+     * @param body Runs the rule.
+     * @return The Result of the rule.
+     */
+    Result nest(Stream stream, Function<Stream, Result> body) {
+        if (++nesting < limit) {
+            try {
+                return body.apply(stream);
+            } finally {
+                nesting--;
+            }
+        }
+        int outer = limit;
+        limit = nesting + SEGMENT;
+        try {
+            return Segment.run(stream, body);
+        } finally {
+            limit = outer;
+            nesting--;
+        }
+    }
+
+    /**
+     * Drops every memoized Result and recorded failure.
+     * Called when the run can no longer backtrack to any position that was memoized.
+     */
+    void forget() {
+        if (packrat) {
+            memo = new HashMap<>();
+        }
+        farthest = null;
+        expected.clear();
+        if (cuts != null) {
+            cutting.clear();
+            purgeAt = MIN_PURGE;
+        }
+    }
+
+    private static long key(int rule, Stream stream) {
+        return ((long) rule << 32) | stream.cursor();
+    }
+
+    /**
+     * A thread that runs segments of nested rule applications for nest(), with a stack of SEGMENT_STACK bytes.
+     * Segments are handed to it and back through SynchronousQueues, and it is kept when it finishes one,
+     * so that a run which keeps crossing the same depth does not start a thread each time.
+     * Idle Segments are shared by every run, and stop after IDLE_SECONDS without work.
+     */
+    private static final class Segment implements Runnable {
+        /** The stack size of each Segment, in bytes: enough for SEGMENT nested rule applications. */
+        private static final long SEGMENT_STACK = 32L << 20;
+        /** How long an idle Segment waits for work before it stops. */
+        private static final long IDLE_SECONDS = 60;
+        /** The Segments that are not running a segment, most recently used first. */
+        private static final Deque<Segment> IDLE = new ConcurrentLinkedDeque<>();
+
+        /** Hands the segment to run to this thread. */
+        private final SynchronousQueue<Boolean> start = new SynchronousQueue<>();
+        /** Hands the segment back when it is done. */
+        private final SynchronousQueue<Boolean> finish = new SynchronousQueue<>();
+        private Stream stream;
+        private Function<Stream, Result> body;
+        private Result result;
+        private Throwable thrown;
+
+        /**
+         * Runs a segment on an idle Segment, or on a new one if none is idle, and waits for it to finish.
+         * The segment uses the state of its run, so it must finish before the calling thread goes on, even if interrupted.
+         * Anything the segment throws is thrown again on the calling thread.
+         *
+         * @param stream The Stream to apply the rule to.
+         * @param body Runs the rule.
+         * @return The Result of the rule.
+         */
+        static Result run(Stream stream, Function<Stream, Result> body) {
+            Segment segment = IDLE.pollFirst();
+            if (segment == null) {
+                segment = new Segment();
+                Thread thread = new Thread(null, segment, "ParserCombinator-segment", SEGMENT_STACK);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            segment.stream = stream;
+            segment.body = body;
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    segment.start.put(Boolean.TRUE);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            while (true) {
+                try {
+                    segment.finish.take();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            Result result = segment.result;
+            Throwable thrown = segment.thrown;
+            segment.result = null;
+            segment.thrown = null;
+            IDLE.addFirst(segment);
+            if (thrown instanceof Error) {
+                throw (Error) thrown;
+            }
+            if (thrown instanceof RuntimeException) {
+                throw (RuntimeException) thrown;
+            }
+            if (thrown != null) {
+                throw new RuntimeException(thrown);
+            }
+            return result;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    if (start.poll(IDLE_SECONDS, TimeUnit.SECONDS) == null) {
+                        // a run that took this Segment off of IDLE is about to hand it a segment
+                        if (IDLE.remove(this)) {
+                            return;
+                        }
+                        continue;
+                    }
+                    try {
+                        result = body.apply(stream);
+                    } catch (Throwable e) {
+                        thrown = e;
+                    }
+                    stream = null;
+                    body = null;
+                    finish.put(Boolean.TRUE);
+                } catch (InterruptedException e) {
+                    // Segments are never interrupted by their runs
+                }
+            }
+        }
+    }
+}
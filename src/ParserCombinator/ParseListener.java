@@ -0,0 +1,43 @@
+package ParserCombinator;
+
+/**
+ * Receives the events of a streaming parse. See ParserCombinator.run(String, ParseListener).
+ *
+ * Events follow the structure of the parse tree that run(String) would build: a rule is entered,
+ * its children are reported in order, and then it is exited. This mirrors the nonterminal, child marker,
+ * and parent marker Symbols that make up the value of a Result.
+ *
+ * Positions are offsets into the input. A position is -1 if it is not known, which happens for terminals
+ * produced by single-character Parsers that are not collapsed by a literal flag.
+ * Every method does nothing by default, so a listener only needs to implement the events it uses.
+ *
+ * @author Max Kopinsky
+ */
+public interface ParseListener {
+    /**
+     * Called when a rule is entered, before any of its children are reported.
+     *
+     * @param rule The name of the rule.
+     * @param start The position of the first character matched by the rule.
+     * @param end The position just after the last character matched by the rule.
+     */
+    default void enterRule(String rule, int start, int end) {}
+
+    /**
+     * Called for each terminal.
+     *
+     * @param value The text of the terminal.
+     * @param start The position of the first character of the terminal, or -1 if unknown.
+     * @param end The position just after the last character of the terminal, or -1 if unknown.
+     */
+    default void terminal(String value, int start, int end) {}
+
+    /**
+     * Called when a rule is exited, after all of its children have been reported.
+     *
+     * @param rule The name of the rule.
+     * @param start The position of the first character matched by the rule.
+     * @param end The position just after the last character matched by the rule.
+     */
+    default void exitRule(String rule, int start, int end) {}
+}
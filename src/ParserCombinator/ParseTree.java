@@ -1,8 +1,11 @@
 package ParserCombinator;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
  * A tree structure that is the output of running a ParserCombinator's Parser.
@@ -10,6 +13,15 @@ import java.util.List;
  * Also used internally as the result of parsing the input grammar.
  * The root of the tree can be accessed with the getRoot() method.
  *
+ * The tree is stored as parallel arrays indexed by node number (parent, first child, next sibling,
+ * value, and source offsets) and is built in one linear pass over the Result.
+ * Terminals that are spans of the input keep only their offsets until their value is first asked for.
+ * Nodes are lightweight views into those arrays. Each view is created at most once,
+ * so walking the tree with getChild() and getSibling() allocates nothing after the first walk.
+ *
+ * A tree produced by ParserCombinator.run(String) also keeps its input and, for each rule, how far into the input
+ * the parse had looked when the rule matched, so that ParserCombinator.reparse() can reuse its subtrees after an edit.
+ *
  * @author Max Kopinsky
  */
 public class ParseTree {
@@ -18,6 +30,31 @@ public class ParseTree {
     /** Whether or not this tree represents a successful parse. */
     private boolean successful;
 
+    /** The number of nodes in the tree. */
+    private int size;
+    /** The value of each node, or null for terminals whose value is the text of their span of the input that has not been copied yet. */
+    private String[] values;
+    /** Whether each node is a terminal. */
+    private boolean[] terminals;
+    /** The parent, leftmost child, last child, and right sibling of each node, or -1 if there is none. */
+    private int[] parents;
+    private int[] children;
+    private int[] lastChildren;
+    private int[] siblings;
+    /** The number of children of each node. */
+    private int[] childCounts;
+    /** The span of the input each node was produced from, or -1 if unknown. */
+    private int[] starts;
+    private int[] ends;
+    /** For nonterminal nodes, the farthest position the parse had examined when the rule matched, or -1 if unknown. */
+    private int[] reaches;
+    /** The input the tree was parsed from, or null if it is not kept. */
+    private String input;
+    /** The input the values of terminals are copied from when they are first needed. */
+    private Source source;
+    /** The view of each node, created on first use. */
+    private Node[] views;
+
     /**
      * Constructor. Takes a Result and builds the tree from it.
      *
@@ -27,6 +64,25 @@ public class ParseTree {
         buildTree(input);
     }
 
+    /**
+     * Constructor for trees that can be reparsed after an edit. See ParserCombinator.reparse().
+     *
+     * @param result The Result to build the tree from.
+     * @param input The input that was parsed.
+     */
+    ParseTree(Result result, String input) {
+        this(result);
+        this.input = input;
+    }
+
+    /**
+     * Getter for input.
+     * @return The input this tree was parsed from, or null if it was not kept.
+     */
+    String getInput() {
+        return input;
+    }
+
     /**
      * Builds a tree out of the input Result.
      * If the Result is a Failure, the output tree will have only one Node which holds the error message.
@@ -35,47 +91,212 @@ public class ParseTree {
      */
     private void buildTree(Result input) {
         if (input instanceof Result.Failure) {
+            allocate(1);
             successful = false;
-            root = new Terminal("The parser failed with error: " + input.value.stream().map(
-                    symbol -> symbol.toString()).reduce(
-                            "", (a, b) -> a + (a.equals("") || a.endsWith(": ") ? "" : ", ") + b)
-                    + "\nUnparsed input:\n" + input.rest, null);
+            root = node(add(((Result.Failure) input).describe(), true, -1, -1, -1));
             return;
         }
         successful = true;
-        List<Symbol> symbols = new ArrayList<>(input.value); // Don't destroy the input list
+        source = input.rest.getSource();
+        List<Symbol> symbols = input.value.toList();
+        int capacity = symbols.size();
+        for (Symbol symbol : symbols) {
+            if (symbol.getType() == Symbol.SymbolType.SUBTREE) {
+                capacity += symbol.getSubtree().size() - 1;
+            }
+        }
+        allocate(Math.max(1, capacity));
         if (symbols.size() == 0) {
-            root = new Terminal("Succeeded with no output.", null);
+            root = node(add("Succeeded with no output.", true, -1, -1, -1));
             return;
         }
-        if (symbols.size() == 1) {
-            root = new Terminal(symbols.remove(0).toString(), null);
+        if (symbols.size() == 1 && symbols.get(0).getType() != Symbol.SymbolType.SUBTREE) {
+            root = node(add(symbols.get(0).toString(), true, -1, symbols.get(0)));
             return;
         }
-        root = new Nonterminal(symbols.remove(0).toString(), null);
+        Symbol first = symbols.get(0);
+        int current = first.getType() == Symbol.SymbolType.SUBTREE
+                ? copy(first.getSubtree(), -1)
+                : add(first.toString(), false, -1, first);
 
-        Node current = root;
-        while (symbols.size() > 0) {
-            Symbol next = symbols.remove(0);
+        for (int i = 1; i < symbols.size(); i++) {
+            Symbol next = symbols.get(i);
             switch (next.getType()) {
                 case CHILD_MARKER:
-                    if (symbols.get(0).getType() == Symbol.SymbolType.PARENT_MARKER) {
-                        current = current.addChild(Symbol.value(""));
+                    if (symbols.get(i + 1).getType() == Symbol.SymbolType.PARENT_MARKER) {
+                        current = add(Symbol.value(""), current);
                         break;
                     }
-                    next = symbols.remove(0);
+                    next = symbols.get(++i);
                     next.assertValue("Child marker not followed by value.");
-                    current = current.addChild(next);
+                    current = add(next, current);
                     break;
                 case NONTERMINAL: // loose Symbols are siblings
                 case VALUE:
-                    current = current.addSibling(next);
+                case SUBTREE:
+                    current = addSibling(next, current);
                     break;
                 case PARENT_MARKER:
-                    current = current.parent;
+                    current = parents[current];
                     break;
             }
         }
+        root = node(0);
+    }
+
+    /**
+     * Allocates the node arrays.
+     * @param capacity The maximum number of nodes in the tree.
+     */
+    private void allocate(int capacity) {
+        values = new String[capacity];
+        terminals = new boolean[capacity];
+        parents = new int[capacity];
+        children = new int[capacity];
+        lastChildren = new int[capacity];
+        siblings = new int[capacity];
+        childCounts = new int[capacity];
+        starts = new int[capacity];
+        ends = new int[capacity];
+        reaches = new int[capacity];
+        views = new Node[capacity];
+    }
+
+    /**
+     * Adds a node made from a value Symbol as the last child of the given parent. Takes constant time.
+     *
+     * @param symbol The Symbol to make a node from.
+     * @param parent The parent of the new node, or -1 for a top-level node.
+     * @return The number of the added node.
+     */
+    private int add(Symbol symbol, int parent) {
+        if (parent >= 0 && terminals[parent]) {
+            throw new IllegalStateException("Can't add child to a terminal.");
+        }
+        if (symbol.getType() == Symbol.SymbolType.SUBTREE) {
+            return copy(symbol.getSubtree(), parent);
+        }
+        return add(symbol.getStoredValue(), symbol.getType() == Symbol.SymbolType.VALUE, parent, symbol);
+    }
+    private int add(String value, boolean terminal, int parent, Symbol span) {
+        int n = add(value, terminal, parent, span.getStart(), span.getEnd());
+        reaches[n] = span.getReach();
+        return n;
+    }
+    private int add(String value, boolean terminal, int parent, int start, int end) {
+        int n = size++;
+        values[n] = value;
+        terminals[n] = terminal;
+        parents[n] = parent;
+        children[n] = -1;
+        lastChildren[n] = -1;
+        siblings[n] = -1;
+        starts[n] = start;
+        ends[n] = end;
+        reaches[n] = -1;
+        link(n, parent);
+        return n;
+    }
+
+    /**
+     * Copies a subtree of a previous parse in as the last child of the given parent. Takes time linear in its size.
+     * The edit did not change the input the subtree spans, so terminals whose values have not been copied yet
+     * are read from the new input at their moved spans.
+     *
+     * @param subtree The subtree to copy.
+     * @param parent The parent of the copied subtree, or -1 for a top-level node.
+     * @return The number of the root of the copied subtree.
+     */
+    private int copy(Subtree subtree, int parent) {
+        ParseTree from = subtree.tree();
+        int first = subtree.node;
+        int count = subtree.size();
+        int moved = subtree.moved;
+        int base = size;
+        int renumber = base - first;
+        System.arraycopy(from.values, first, values, base, count);
+        System.arraycopy(from.terminals, first, terminals, base, count);
+        System.arraycopy(from.childCounts, first, childCounts, base, count);
+        for (int i = 0; i < count; i++) {
+            int o = first + i;
+            int n = base + i;
+            parents[n] = i == 0 ? parent : from.parents[o] + renumber;
+            children[n] = from.children[o] < 0 ? -1 : from.children[o] + renumber;
+            lastChildren[n] = from.lastChildren[o] < 0 ? -1 : from.lastChildren[o] + renumber;
+            siblings[n] = i == 0 || from.siblings[o] < 0 ? -1 : from.siblings[o] + renumber;
+            starts[n] = from.starts[o] < 0 ? -1 : from.starts[o] + moved;
+            ends[n] = from.ends[o] < 0 ? -1 : from.ends[o] + moved;
+            reaches[n] = from.reaches[o] < 0 ? -1 : from.reaches[o] + moved;
+        }
+        size += count;
+        link(base, parent);
+        return base;
+    }
+
+    /**
+     * Makes a node the last child of the given parent.
+     * @param n The number of the node.
+     * @param parent The parent of the node, or -1 for a top-level node.
+     */
+    private void link(int n, int parent) {
+        if (parent >= 0) {
+            if (children[parent] < 0) {
+                children[parent] = n;
+            } else {
+                siblings[lastChildren[parent]] = n;
+            }
+            lastChildren[parent] = n;
+            childCounts[parent]++;
+        }
+    }
+
+    /**
+     * Adds a node made from a value Symbol as the right sibling of the given node,
+     * which is always the most recently added node of its parent. Takes constant time.
+     *
+     * @param symbol The Symbol to make a node from.
+     * @param node The node to add a sibling to.
+     * @return The number of the added node.
+     */
+    private int addSibling(Symbol symbol, int node) {
+        int parent = parents[node];
+        if (parent >= 0) {
+            return add(symbol, parent);
+        }
+        int n = add(symbol, -1);
+        int last = node;
+        while (siblings[last] >= 0) {
+            last = siblings[last];
+        }
+        siblings[last] = n;
+        return n;
+    }
+
+    /**
+     * Gets the value of a node, copying it out of the input the first time it is needed.
+     * @param n The number of the node.
+     * @return The value of the node.
+     */
+    private String value(int n) {
+        if (values[n] == null) {
+            values[n] = source.substring(starts[n], ends[n]);
+        }
+        return values[n];
+    }
+
+    /**
+     * Gets the view of a node.
+     * @param n The number of the node.
+     * @return The view of the node, or null if n is -1.
+     */
+    private Node node(int n) {
+        if (n < 0) {
+            return null;
+        }
+        if (views[n] == null) {
+            views[n] = new Node(n);
+        }
+        return views[n];
     }
 
     /**
@@ -94,6 +315,14 @@ public class ParseTree {
         return root;
     }
 
+    /**
+     * Gets the number of nodes in the tree.
+     * @return The size of the tree.
+     */
+    public int size() {
+        return size;
+    }
+
     /**
      * This toString() method adapted from this StackOverflow answer:
      * https://stackoverflow.com/a/1649223
@@ -116,48 +345,183 @@ public class ParseTree {
             ret.append("|-");
             indent += "| ";
         }
-        ret.append(current.value).append("\n");
+        ret.append(current.getValue()).append("\n");
 
-        List<Node> children = current.getChildren();
-        Node lastChild = children.size() == 0 ? null : children.get(children.size() - 1);
-        for (Node child : current) {
-            ret.append(toString(child, indent, child == lastChild));
+        for (Node child = current.getChild(); child != null; child = child.getSibling()) {
+            ret.append(toString(child, indent, child.getSibling() == null));
         }
         return ret.toString();
     }
 
     /**
-     * A class representing the nodes of the tree. Each Node stores
+     * Finds the subtrees of this tree that an edit of its input cannot have changed, so that a parse of the
+     * edited input can use them instead of parsing their rules again. A rule's subtree is unchanged if the parse
+     * had not yet examined the edited text when the rule matched, or if the rule started after the edited text.
+     * Finding them takes one pass over the nodes of the tree.
+     *
+     * @param ruleNumbers The number of each rule of the grammar, by name.
+     * @param offset The position of the edit in the input of this tree.
+     * @param removed The number of characters the edit removed.
+     * @param inserted The number of characters the edit inserted.
+     * @return The reusable subtrees, by rule and position in the edited input.
+     */
+    Reuse reuse(Map<String, Integer> ruleNumbers, int offset, int removed, int inserted) {
+        return new Reuse(ruleNumbers, offset, removed, inserted);
+    }
+
+    /** The subtrees of this tree that are still valid after an edit. See reuse(). */
+    final class Reuse {
+        /** The reusable nodes, keyed like ParseContext memo entries: by rule number and start in the edited input. */
+        private final Map<Long, Integer> nodes = new HashMap<>();
+        /** Where the text after the edit starts in the input of this tree. */
+        private final int after;
+        /** How far the edit moved the text after it. */
+        private final int shift;
+
+        private Reuse(Map<String, Integer> ruleNumbers, int offset, int removed, int inserted) {
+            after = offset + removed;
+            shift = inserted - removed;
+            if (!successful) {
+                return;
+            }
+            for (int n = 0; n < size; n++) {
+                if (terminals[n] || reaches[n] < 0 || (reaches[n] >= offset && starts[n] < after)) {
+                    continue;
+                }
+                Integer rule = ruleNumbers.get(values[n]);
+                if (rule == null) {
+                    continue;
+                }
+                if (reaches[n] < offset) {
+                    nodes.putIfAbsent(((long) rule << 32) | starts[n], n);
+                } else if (starts[n] >= after) {
+                    nodes.putIfAbsent(((long) rule << 32) | (starts[n] + shift), n);
+                }
+            }
+        }
+
+        /**
+         * Gets the Result a rule had in the previous parse, moved to its position in the edited input.
+         *
+         * @param rule The number of the rule.
+         * @param stream The Stream the rule is being run on.
+         * @return The Result of the rule, or null if the previous parse has no valid Result for it at this position.
+         */
+        Result recall(int rule, Stream stream) {
+            Integer n = nodes.get(((long) rule << 32) | stream.cursor());
+            if (n == null) {
+                return null;
+            }
+            int moved = starts[n] >= after ? shift : 0;
+            // the reused Result depends on the input the previous parse examined for it
+            stream.getContext().examine(reaches[n] + moved);
+            return new Result.Success(Symbol.subtree(new Subtree(n, moved), starts[n] + moved, ends[n] + moved),
+                    stream.move(ends[n] + moved - stream.cursor()));
+        }
+    }
+
+    /**
+     * A subtree of this tree, reused by a reparse. The new tree copies its nodes in one pass instead of
+     * rebuilding them from Symbols. The nodes of a subtree are numbered consecutively, since nodes are
+     * numbered in the order they are added, which is a preorder walk of the tree.
+     */
+    final class Subtree {
+        /** The root of the subtree. */
+        private final int node;
+        /** How far the edit moved the subtree. */
+        private final int moved;
+
+        private Subtree(int node, int moved) {
+            this.node = node;
+            this.moved = moved;
+        }
+
+        /**
+         * Gets the number of nodes in the subtree.
+         * @return The size of the subtree.
+         */
+        int size() {
+            int last = node;
+            while (lastChildren[last] >= 0) {
+                last = lastChildren[last];
+            }
+            return last - node + 1;
+        }
+
+        /**
+         * Appends the values of the subtree's terminals to a StringBuilder, in order. See Parser.literal().
+         * @param text The StringBuilder to append to.
+         */
+        void appendTerminals(StringBuilder text) {
+            for (int n = node, end = node + size(); n < end; n++) {
+                if (terminals[n]) {
+                    text.append(value(n));
+                }
+            }
+        }
+
+        /**
+         * Gets the tree this is a subtree of.
+         * @return The previous ParseTree.
+         */
+        ParseTree tree() {
+            return ParseTree.this;
+        }
+
+        @Override
+        public String toString() {
+            return values[node];
+        }
+    }
+
+    /**
+     * A view of one node of the tree. Each Node exposes
      * 1) a value
-     * 2) a reference to its parent node, which is not visible outside the ParseTree class
-     * 3) a reference to its leftmost child
-     * 4) a reference to its first sibling on its right.
+     * 2) its parent node, which is not visible outside the ParseTree package
+     * 3) its leftmost child
+     * 4) its first sibling on its right
+     * 5) the span of the input it was produced from.
      *
      * Nodes can be Terminal or Nonterminal. A Node should be a leaf node if and only if it is Terminal.
      */
-    public abstract class Node implements Iterable<Node> {
-        private String value;
-        private Node parent;
-        private Node child;
-        private Node sibling;
+    public class Node implements Iterable<Node> {
+        /** The number of this node in the tree's arrays. */
+        private final int index;
 
         /**
-         * Constructor. Sets the Node's value and its parent.
-         * @param v Value.
-         * @param p Parent.
+         * Constructor. Only called by ParseTree.node(), which caches the views.
+         * @param n The number of the node.
          */
-        Node(String v, Node p) {
-            value = v;
-            parent = p;
+        private Node(int n) {
+            index = n;
         }
 
         /**
          * Convenience method for ParserCombinator that returns an iterator over this Node's children.
+         * For allocation-free iteration, use getChild() and getSibling() instead.
+         *
          * @return An iterator over this Node's children.
          */
         @Override
         public Iterator<Node> iterator() {
-            return getChildren().stream().iterator();
+            return new Iterator<Node>() {
+                private int next = children[index];
+
+                @Override
+                public boolean hasNext() {
+                    return next >= 0;
+                }
+
+                @Override
+                public Node next() {
+                    if (next < 0) {
+                        throw new NoSuchElementException();
+                    }
+                    Node ret = node(next);
+                    next = siblings[next];
+                    return ret;
+                }
+            };
         }
 
         /**
@@ -166,17 +530,41 @@ public class ParseTree {
          * @return The Node's value.
          */
         public String getValue() {
-            return value;
+            return value(index);
         }
 
         /**
-         * Getter for the children of a Node. Returns a list containing all children from left to right.
+         * Whether this Node is a terminal (leaf) node.
+         * @return True if the Node is a terminal.
+         */
+        public boolean isTerminal() {
+            return terminals[index];
+        }
+
+        /**
+         * Getter for the start of the span of the input this Node was produced from.
+         * @return The position of the first character of this Node's input, or -1 if unknown.
+         */
+        public int getStart() {
+            return starts[index];
+        }
+
+        /**
+         * Getter for the end of the span of the input this Node was produced from.
+         * @return The position just after the last character of this Node's input, or -1 if unknown.
+         */
+        public int getEnd() {
+            return ends[index];
+        }
+
+        /**
+         * Getter for the children of a Node. Returns a new list containing all children from left to right.
          *
          * @return A List of all the Node's children.
          */
         public List<Node> getChildren() {
-            List<Node> ret = new ArrayList<>();
-            for (Node current = child; current != null; current = current.sibling) {
+            List<Node> ret = new ArrayList<>(childCounts[index]);
+            for (Node current = getChild(); current != null; current = current.getSibling()) {
                 ret.add(current);
             }
             return ret;
@@ -186,42 +574,43 @@ public class ParseTree {
          * @return The leftmost child of this Node.
          */
         public Node getChild() {
-            return child;
+            return node(children[index]);
         }
         /**
          * Convenience method for ParserCombinator. Gets the nth child from the left of this Node.
          * @return The nth child of this Node from the left.
          */
         public Node getChild(int n) {
-            Node current = child;
-            for (; n > 0 && current != null; n--) {
-                current = current.sibling;
+            int current = children[index];
+            for (; n > 0 && current >= 0; n--) {
+                current = siblings[current];
             }
-            return current;
+            return node(current);
         }
         public String getDeepValue(int d) {
             if (d <= 0) {
-                return value;
+                return getValue();
             }
-            Node current = child;
+            int current = children[index];
             for (; d > 1; d--) {
-                current = current.child;
+                current = children[current];
             }
-            return current.value;
+            return value(current);
         }
         public int numChildren() {
-            return getChildren().size();
+            return childCounts[index];
         }
         /**
          * Getter for the first sibling on the right of a Node. Probably useful for building ASTs out of ParseTrees.
+         * Together with getChild(), allows walking the tree without allocating.
          *
          * @return The first sibling to the right of the Node.
          */
-        Node getSibling() {
-            return sibling;
+        public Node getSibling() {
+            return node(siblings[index]);
         }
         Node getParent() {
-            return parent;
+            return node(parents[index]);
         }
         public String getTags() {
             StringBuilder tags = new StringBuilder();
@@ -230,68 +619,5 @@ public class ParseTree {
             }
             return tags.toString();
         }
-
-        /**
-         * Adds a child to a Node from a given Symbol.
-         *
-         * @param symbol The Symbol to make a Node from.
-         * @return The added child.
-         */
-        Node addChild(Symbol symbol) {
-            if (this instanceof Terminal) {
-                throw new IllegalStateException("Can't add child to a terminal.");
-            }
-            Node toAdd;
-            String v = symbol.getValue();
-            if (symbol.getType() == Symbol.SymbolType.VALUE) {
-                toAdd = new Terminal(v, this);
-            } else {
-                toAdd = new Nonterminal(v, this);
-            }
-            if (child == null) {
-                child = toAdd;
-                return child;
-            }
-            Node current = child;
-            while (current.sibling != null) {
-                current = current.sibling;
-            }
-            current.sibling = toAdd;
-            return current.sibling;
-        }
-
-        /**
-         * Adds a sibling to a Node from a given Symbol.
-         *
-         * @param symbol The Symbol to make a Node from.
-         * @return The added sibling.
-         */
-        Node addSibling(Symbol symbol) {
-            Node current = this;
-            while (current.sibling != null) {
-                current = current.sibling;
-            }
-            String v = symbol.getValue();
-            if (symbol.getType() == Symbol.SymbolType.VALUE) {
-                current.sibling = new Terminal(v, this.parent);
-            } else {
-                current.sibling = new Nonterminal(v, this.parent);
-            }
-            return current.sibling;
-        }
-    }
-
-    /** Class representing Terminal Nodes. */
-    class Terminal extends Node {
-        Terminal(String literal, Node parent) {
-            super(literal, parent);
-        }
-    }
-
-    /** Class representing Nonterminal Nodes. */
-    class Nonterminal extends Node {
-        Nonterminal(String nonterminal, Node parent) {
-            super(nonterminal, parent);
-        }
     }
 }
@@ -1,7 +1,5 @@
 package ParserCombinator;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import ParserCombinator.Result.Failure;
@@ -13,6 +11,7 @@ import ParserCombinator.Result.Failure;
  * returns a Result whose 'rest' field is equal to the input Stream.
  *
  * Parsers can map, bimap, chain, and fold over their Results.
+ * Parsers are immutable, so one Parser may be run on many Streams at once from different threads.
  *
  * @author Max Kopinsky
  */
@@ -30,10 +29,29 @@ class Parser {
     }
 
     /** This Parser's parse function. */
-    private Function<Stream, Result> parse;
+    private final Function<Stream, Result> parse;
+    /** The characters matched by this Parser if it is a single-character terminal, otherwise null. */
+    private final CharClass charClass;
 
     Parser(Function<Stream, Result> setParse) {
+        this(setParse, null);
+    }
+    /**
+     * Constructor for single-character terminal Parsers. See Combinators.charClass().
+     * @param setParse This Parser's parse function.
+     * @param chars The characters matched by this Parser.
+     */
+    Parser(Function<Stream, Result> setParse, CharClass chars) {
         parse = setParse;
+        charClass = chars;
+    }
+
+    /**
+     * Getter for charClass.
+     * @return The characters matched by this Parser if it is a single-character terminal, otherwise null.
+     */
+    CharClass getCharClass() {
+        return charClass;
     }
 
     /**
@@ -56,21 +74,20 @@ class Parser {
      * If the Parser succeeds with the value [a, b], both value Symbols, then the Success will be mapped
      * to a Success with output value [nonterminal, (, a, b, )], where 'nonterminal' is a nonterminal Symbol, intended
      * to be the name of the rule that generated this Parser, and the ( and ) Symbols are child and parent markers.
+     * The wrapping takes constant time; the value is not copied.
+     * The nonterminal Symbol records the span of the input that the production matched.
      *
      * @param nonterminal The name of the rule that parses this production.
      * @return A mapped Result with an implicit tree structure.
      */
     Parser parent(String nonterminal) {
-        return new Parser(stream -> parse.apply(stream).map(list -> {
-            list.add(0, Symbol.childMarker());
-            list.add(0, Symbol.nonterminal(nonterminal));
-            list.add(Symbol.parentMarker());
-            return list;
-        }));
+        return new Parser(stream -> parent(nonterminal, stream, parse.apply(stream)));
     }
     /**
      * Implementation of a supporting Parser map. A parser under the "literal" map loses its tree structure,
      * returning only the <em>terminal</em> symbols it matched.
+     * The terminals are joined in a single pass, in time linear in the size of the value,
+     * and the joined Symbol records the span of the input that was matched.
      *
      * If you'd like to see an example, try running the following set of Parsers on a sentence with no punctuation:
      * Parser letter = set("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz");
@@ -81,15 +98,76 @@ class Parser {
      * @return A literalized Parser.
      */
     Parser literal() {
-        return new Parser(stream -> parse.apply(stream).map(list -> {
-            List<Symbol> collapsed = new ArrayList<>();
-            collapsed.add(Symbol.value(list.stream().map(symbol ->
-                    symbol.getType() == Symbol.SymbolType.VALUE
-                            ? symbol.getValue()
-                            : ""
-            ).reduce("", (a, b) -> a + b)));
-            return collapsed;
-        }));
+        return new Parser(stream -> literal(stream, parse.apply(stream)));
+    }
+
+    /**
+     * The map applied by parent(), for Parsers that have already been run. Also used by compiled grammars.
+     *
+     * @param nonterminal The name of the rule that produced the Result.
+     * @param stream The Stream the rule was run on.
+     * @param result The Result of the rule's productions.
+     * @return The Result with an implicit tree structure.
+     */
+    static Result parent(String nonterminal, Stream stream, Result result) {
+        ParseContext context = stream.getContext();
+        int reach = context == null ? -1 : context.getReach();
+        return result.map(rope -> Rope.of(Symbol.nonterminal(nonterminal, stream.cursor(), result.rest.cursor(), reach))
+                .append(Symbol.childMarker()).append(rope).append(CLOSE));
+    }
+    private static final Rope CLOSE = Rope.of(Symbol.parentMarker());
+
+    /**
+     * The map applied by literal(), for Parsers that have already been run. Also used by compiled grammars.
+     *
+     * @param stream The Stream the Parser was run on.
+     * @param result The Result of the Parser.
+     * @return The Result with only its terminals, joined into one.
+     */
+    static Result literal(Stream stream, Result result) {
+        return result.map(rope -> {
+            int end = verbatimEnd(rope, stream.cursor(), result.rest.cursor());
+            if (end >= 0) {
+                // the joined terminals are a span of the input, so they need not be copied
+                return Rope.of(Symbol.span(stream.getSource(), stream.cursor(), end));
+            }
+            StringBuilder collapsed = new StringBuilder();
+            for (Symbol symbol : rope) {
+                if (symbol.getType() == Symbol.SymbolType.VALUE) {
+                    collapsed.append(symbol.getValue());
+                } else if (symbol.getType() == Symbol.SymbolType.SUBTREE) {
+                    symbol.getSubtree().appendTerminals(collapsed);
+                }
+            }
+            return Rope.of(Symbol.value(collapsed.toString(), stream.cursor(), result.rest.cursor()));
+        });
+    }
+
+    /**
+     * Finds where the terminals of a Result's value end in the input, if joined they are exactly the input from its start.
+     * Terminals are in input order, so they are if all of them are verbatim and each starts where the last one ended.
+     * Terminals whose position is unknown are assumed to, as long as together the terminals span the whole match.
+     *
+     * @param rope The value of the Result.
+     * @param start The position of the start of the match.
+     * @param end The position of the end of the match.
+     * @return The end of the joined terminals, or -1 if they are not a span of the input.
+     */
+    private static int verbatimEnd(Rope rope, int start, int end) {
+        int next = start;
+        boolean positioned = true;
+        for (Symbol symbol : rope) {
+            if (symbol.getType() == Symbol.SymbolType.VALUE) {
+                if (!symbol.isVerbatim() || (symbol.getStart() >= 0 && symbol.getStart() != next)) {
+                    return -1;
+                }
+                positioned &= symbol.getStart() >= 0;
+                next += symbol.length();
+            } else if (symbol.getType() == Symbol.SymbolType.SUBTREE) {
+                return -1;
+            }
+        }
+        return positioned || next == end ? next : -1;
     }
 
     /**
@@ -99,14 +177,14 @@ class Parser {
      * @return A mapped parser whose Success Results have empty values.
      */
     Parser ignore() {
-        return new Parser(stream -> parse.apply(stream).map(list -> new ArrayList<>()));
+        return new Parser(stream -> parse.apply(stream).map(rope -> Rope.EMPTY));
     }
     /** Gets a new Parser which applies this Parser and then maps the Result. See Result.map(). */
-    Parser map(Function<List<Symbol>, List<Symbol>> fn) {
+    Parser map(Function<Rope, Rope> fn) {
         return new Parser(stream -> parse.apply(stream).map(fn));
     }
     /** Gets a new Parser which applies this Parser and then bimaps the Result. See Result.bimap(). */
-    Parser bimap(Function<List<Symbol>, List<Symbol>> success, Function<List<Symbol>, List<Symbol>> failure) {
+    Parser bimap(Function<Rope, Rope> success, Function<Rope, Rope> failure) {
         return new Parser(stream -> parse.apply(stream).bimap(success, failure));
     }
     /**
@@ -114,19 +192,19 @@ class Parser {
      * The output Parser runs this Parser, applies the input function to the Result's value, and then runs the
      * Parser returned by the input function on the Result's 'rest' Stream.
      *
-     * The normal input function is vs -> p2.map(v -> { vs.addAll(v); return vs; }) where p2 is the Parser to chain to.
+     * The normal input function is vs -> p2.map(v -> vs.append(v)) where p2 is the Parser to chain to.
      * The end result of the above function is a Parser which applies this Parser and p2 in sequence, and returns their values in sequence.
      *
-     * @param f A function f : List<Symbol> -> Parser to get the Parser to run after this one.
+     * @param f A function f : Rope -> Parser to get the Parser to run after this one.
      * @return A chained Parser.
      */
-    Parser chain(Function<List<Symbol>, Parser> f) {
+    Parser chain(Function<Rope, Parser> f) {
         return new Parser(stream -> parse.apply(stream).chain((v, s) -> f.apply(v).run(s))); // v = value, s = stream of result
     }
 
     /** An unused function to apply Result -> Result folds to Parsers. Equivalent to folding the Result.
      * Since folding is usually a postprocess on a Parser, folding the Result is preferred. */
-    Parser fold(BiFunction<List<Symbol>, Stream, Result> success, BiFunction<List<Symbol>, Stream, Result> failure) {
+    Parser fold(BiFunction<Rope, Stream, Result> success, BiFunction<Rope, Stream, Result> failure) {
         return new Parser(stream -> parse.apply(stream).fold(success, failure));
     }
 }
@@ -1,12 +1,27 @@
 package ParserCombinator;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
-
-import ParserCombinator.ParseTree.Node;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
 
 import static ParserCombinator.Combinators.*;
 
@@ -14,156 +29,690 @@ import static ParserCombinator.Combinators.*;
  * Main class of the ParserCombinator package.
  * Represents a complex Parser constructed dynamically from an input grammar in BNF form.
  *
+ * A ParserCombinator may be shared between threads and run on many inputs at once. Its Parsers are immutable,
+ * and everything a run changes (memo table, recorded failures, input buffer) belongs to that run's ParseContext
+ * and Stream. setPackrat(), setProfiling() and setAction() may also be called concurrently;
+ * they apply to runs started after they return.
+ *
  * @author Max Kopinsky
  */
 public class ParserCombinator {
-    private Parser parseGrammar;
+    private final Parser parseGrammar;
+    /** The Parser of the start rule alone, without the end-of-input check of parseGrammar. */
+    private final Parser startRule;
+    /** Whether runs of this ParserCombinator memoize the Results of named rules. */
+    private volatile boolean packrat;
+    /** Whether runs of this ParserCombinator record how often each named rule is applied and how long it takes. */
+    private volatile boolean profiling;
+    /** The name of each named rule, indexed by rule number. */
+    private final List<String> ruleNames;
+    /** The number of each named rule. */
+    private final Map<String, Integer> ruleNumbers = new HashMap<>();
+    /** Whether a cut in each rule can commit a choice outside of the rule, or null if the grammar has no cuts. */
+    private final boolean[] cuts;
+    /** The counts of every profiled run so far. Runs add their counts to it when they end, synchronizing on it. */
+    private final Profile profile;
+    /**
+     * The semantic action of each named rule, indexed by rule number. Rules without an action have null.
+     * The list is never modified; setAction() replaces it, so each run uses the actions set when it started.
+     */
+    private volatile List<Function<List<Object>, Object>> actions;
 
     /**
      * Constructor for a ParserCombinator. Takes a grammar in BNF form.
      * A constructed ParserCombinator can call run() on a string to attempt to parse it,
      * which will return a ParseTree.
      *
+     * Besides alternations of productions, a rule may be an operand followed by a precedence table, such as
+     * {@code <sum> ::= <number> % left '+' '-' % left '*' '/' % prefix '-' % right '^'}.
+     * Each '%' starts a level of operators that are "left" or "right" associative binary operators, or "prefix" operators;
+     * later levels bind more tightly. Each application of an operator is a node of the rule. See Combinators.operators().
+     *
+     * A '^' in a production is a cut, which commits the innermost choice being tried, so that
+     * {@code <sexpr> ::= '(' ^ <expr>* ')'} reports a missing ')' at once instead of trying the other ways
+     * to parse what precedes it. See Combinators.cut().
+     *
      * @param BNFGrammar The grammar that this Parser should parse.
      * @throws IllegalArgumentException if the grammar is invalid.
      */
     public ParserCombinator(String BNFGrammar) throws IllegalArgumentException {
-        Parser syntax = getBNFParser();
-        ParseTree grammar =  new ParseTree(syntax.run(BNFGrammar));
-        if (!grammar.assertSuccess()) {
-            throw new IllegalArgumentException("Failed to parse the input grammar. " + grammar);
-        }
-
-        int startCount = 0;
-        String startSymbol = null;
-
-        // todo: throw an error if a rule is left-recursive
-        // todo: verify every referenced rule is also defined
-        // todo: builtin parsers: <ws>, <line-end>, <set>[]
-        //<editor-fold desc="Identify the start symbol. Throws errors if one can't be found or if there are multiple.">
-        List<String> referencedRules = new ArrayList<>();
-        List<String> definedRules = new ArrayList<>();
-        for (Node rule : grammar.getRoot()) {
-            String defName = rule.getChild().getChild().getValue(); // rule -> lhs -> name
-            if (definedRules.contains(defName)) {
-                throw new IllegalArgumentException("A rule was defined twice. Alternation should be declared with '|' characters.");
-            }
-            definedRules.add(defName);
-            for (Node list : rule.getChild(1)) {
-                for (Node potentialReference : list) {
-                    if (potentialReference.getChild().getValue().equals("rule-name")) {
-                        String ruleName = potentialReference.getChild().getChild().getValue();
-                        if (!referencedRules.contains(ruleName) && !ruleName.equals(defName)) {
-                            referencedRules.add(ruleName);
-                        }
-                    }
-                }
-            }
-        }
-        for (String rule : definedRules) {
-            if (!referencedRules.contains(rule)) {
-                startCount++;
-                if (startCount > 1) { throw new IllegalArgumentException("More than one potential start symbol (unreferenced rule)"); }
-                startSymbol = rule;
-            }
-        }
-        if (startCount == 0) {
-            throw new IllegalStateException("No potential start symbol (all nonterminals are reference in other productions)");
-        }
-        //</editor-fold>
+        this(Grammar.parse(BNFGrammar));
+    }
+    private ParserCombinator(Grammar grammar) {
+        this(ruleNames(grammar), grammar.start, build(grammar), grammar.cuts);
+    }
 
-        Map<String, Parser> parsers = new HashMap<>();
-        // iterate through rules, store the rule name
-        for (Node rule : grammar.getRoot()) {
-            String ruleName = rule.getChild().getChild().getValue(); // rule -> lhs  -> name
-            // Create a list of lists of temporary Parsers.
-            List<List<Parser>> seqProductions = new ArrayList<>();
-            // for each list in the expression, create a list of temporary Parsers and add it to the list above
-            for (Node list : rule.getChild(1)) {
+    /**
+     * Builds the Parser of each rule of a grammar from combinators.
+     * @param grammar The grammar.
+     * @return The Parser of each rule, indexed by rule number.
+     */
+    private static List<Parser> build(Grammar grammar) {
+        List<Parser> parsers = new ArrayList<>();
+        // iterate through rules in order of their numbers
+        for (Grammar.Rule rule : grammar.rules) {
+            // Create a list of temporary Parsers, one per production of this rule.
+            List<Parser> productions = new ArrayList<>();
+            for (List<Grammar.Term> terms : rule.productions) {
                 List<Parser> sequence = new ArrayList<>();
-                seqProductions.add(sequence); // by reference.
-                // for each term in the list, add a parser that matches it to the list above
-                for (Node term : list) {
-                    Node termValue = term.getChild();
-                    Parser toAdd = never(""); // just to initialize to something, but this will always be overwritten.
-                    switch (termValue.getValue()) {
-                        case "regex":
-                            toAdd = regex(termValue.getChild().getValue());
-                            break;
-                        case "literal":
-                            toAdd = string(termValue.getChild().getValue());
-                            break;
-                        case "rule-name":
-                            // whenever a rule is encountered, check if it is in the Map.
-                            String referenceName = termValue.getChild().getValue();
-                            if (parsers.containsKey(referenceName)) {
-                                // If it is, reference it directly with Map.get(ruleName)
-                                toAdd = parsers.get(referenceName);
-                            } else {
-                                // if it is not, reference it through a delayed combinator: delayed(() -> Map.get(ruleName))
-                                toAdd = delayed(() -> parsers.get(referenceName));
-                            }
-                            break;
-                    }
-                    // Apply option flags to the term
-                    for (Node option = termValue.getSibling(); option != null; option = option.getSibling()) {
-                        switch (option.getChild().getValue()) {
-                            case "?": toAdd = maybe(toAdd); break;
-                            case "+": toAdd = plus(toAdd); break;
-                            case "*": toAdd = star(toAdd); break;
-                            case "l": toAdd = toAdd.literal(); break;
-                            case "i": toAdd = toAdd.ignore(); break;
-                        }
-                    }
-                    sequence.add(toAdd);
+                // for each term in the production, add a parser that matches it to the list above
+                for (Grammar.Term term : terms) {
+                    sequence.add(term(grammar, term, parsers));
+                }
+                // if the production has one term, use it directly;
+                // otherwise use the sequence of its terms (in order)
+                if (sequence.size() == 1) {
+                    productions.add(sequence.get(0));
+                } else if (sequence.size() == 2) {
+                    productions.add(concat(sequence.get(0), sequence.get(1)));
+                } else {
+                    productions.add(sequence(sequence.toArray(new Parser[0])));
                 }
             }
 
-            // for each List<Parser> in the List<List<Parser>>
-            // if the List<Parser> has size 1, map it to a Parser that is equivalent
-            // otherwise map it to the sequence of the Parsers in the List (in order)
-            // Results in a List<Parser>, one per list of this rule.
-            List<Parser> productions = seqProductions.stream().map(sequence -> {
-                        if (sequence.size() == 1) {
-                            return sequence.get(0);
-                        }
-                        if (sequence.size() == 2) {
-                            return concat(sequence.get(0), sequence.get(1));
-                        }
-                        return sequence(sequence.toArray(new Parser[0]));
-                    }).collect(Collectors.toList());
-
             // Create a temporary Parser.
             Parser thisRule;
-            // Set the temporary Parser equal to (the alternation of each Parser in the above list).parent("rule name")
-            if (productions.size() == 1) {
+            // Set the temporary Parser equal to the alternation of each production
+            if (rule.levels != null) {
+                // an operator rule: its only production is the operand, and each level is one precedence
+                List<Operator> table = new ArrayList<>();
+                for (int i = 0; i < rule.levels.size(); i++) {
+                    Grammar.Level level = rule.levels.get(i);
+                    for (Grammar.Term operator : level.operators) {
+                        table.add(new Operator(term(grammar, operator, parsers), i, level.kind));
+                    }
+                }
+                thisRule = operators(rule.name, rule.number, productions.get(0), table.toArray(new Operator[0]));
+            } else if (productions.size() == 1) {
                 thisRule = productions.get(0);
             } else {
-                thisRule = alternate(productions.toArray(new Parser[0]));
+                // skip the productions that cannot start with the next character
+                CharClass[] firsts = new CharClass[productions.size()];
+                Rope[][] labels = new Rope[productions.size()][];
+                for (int i = 0; i < firsts.length; i++) {
+                    List<Grammar.Term> production = rule.productions.get(i);
+                    firsts[i] = grammar.startsWith(production);
+                    labels[i] = grammar.expected(production).stream().map(label -> Rope.of(Symbol.value(label))).toArray(Rope[]::new);
+                }
+                thisRule = dispatch(productions.toArray(new Parser[0]), firsts, labels);
             }
 
             //POSTPROCESSING ON RULE
-            Node option = rule.getChild().getChild(1);
             // Apply literal option flag
-            if (option != null && option.getValue().equals("l")) {
+            if ("l".equals(rule.option)) {
                 thisRule = thisRule.literal();
             }
-            // Apply parent after literal so we still get [name, (, literal, )]
-            thisRule = thisRule.parent(ruleName);
+            // Apply parent (or the rule's semantic action) after literal so we still get [name, (, literal, )]
+            thisRule = rule(rule.name, rule.number, thisRule);
             // Apply ignore option flag after parent so the Result never appears at all
-            if (option != null && option.getValue().equals("i")) {
+            if ("i".equals(rule.option)) {
                 thisRule = thisRule.ignore();
             }
-            // Store the temp Parser in the Map under the key of its name.
-            parsers.put(ruleName, thisRule);
-            // If its name is the start symbol, then also set parseGrammar to the temp Parser.
-            if (ruleName.equals(startSymbol)) {
-                parseGrammar = concat(thisRule, eof());
+            // Memoize the finished rule so that packrat runs parse it at most once per position
+            thisRule = memoize(rule.number, thisRule);
+            parsers.add(thisRule);
+        }
+        return parsers;
+    }
+
+    /**
+     * Builds the Parser of a term of a production, with its option flag applied.
+     *
+     * @param grammar The grammar.
+     * @param term The term.
+     * @param parsers The Parsers of the rules built so far, indexed by rule number. Rules that are not built yet
+     *                are referenced through delayed(), and must be added to the list before the term is run.
+     * @return A Parser for the term.
+     */
+    private static Parser term(Grammar grammar, Grammar.Term term, List<Parser> parsers) {
+        Parser toAdd = never(""); // just to initialize to something, but this will always be overwritten.
+        switch (term.kind) {
+            case REGEX:
+                toAdd = regex(term.text);
+                break;
+            case LITERAL:
+                toAdd = string(term.text);
+                break;
+            case CUT:
+                toAdd = cut();
+                break;
+            case RULE:
+                // whenever a rule is encountered, check if it has been built yet.
+                int reference = grammar.number(term.text);
+                if (reference < parsers.size()) {
+                    // If it has, reference it directly
+                    toAdd = parsers.get(reference);
+                } else {
+                    // if it has not, reference it through a delayed combinator: delayed(() -> parsers.get(number))
+                    toAdd = delayed(() -> parsers.get(reference));
+                }
+                break;
+        }
+        // Apply the option flag to the term
+        if (term.option != null) {
+            switch (term.option) {
+                case "?": toAdd = maybe(toAdd); break;
+                case "+": toAdd = plus(toAdd); break;
+                case "*": toAdd = star(toAdd); break;
+                case "l": toAdd = toAdd.literal(); break;
+                case "i": toAdd = toAdd.ignore(); break;
             }
         }
+        return toAdd;
+    }
+
+    private static List<String> ruleNames(Grammar grammar) {
+        List<String> names = new ArrayList<>();
+        for (Grammar.Rule rule : grammar.rules) {
+            names.add(rule.name);
+        }
+        return names;
+    }
+
+    /**
+     * Constructor for ParserCombinators whose rules have already been built, such as those compiled by GrammarCompiler.
+     *
+     * @param ruleNames The name of each rule, indexed by rule number.
+     * @param start The number of the start rule.
+     * @param rules The Parser of each rule, indexed by rule number.
+     * @param cuts Whether a cut in each rule can commit a choice outside of the rule, or null if the grammar has no cuts.
+     *             See Grammar.cuts.
+     */
+    ParserCombinator(List<String> ruleNames, int start, List<Parser> rules, boolean[] cuts) {
+        List<Function<List<Object>, Object>> noActions = new ArrayList<>();
+        for (int i = 0; i < ruleNames.size(); i++) {
+            ruleNumbers.put(ruleNames.get(i), i);
+            noActions.add(null);
+        }
+        actions = Collections.unmodifiableList(noActions);
+        this.ruleNames = Collections.unmodifiableList(new ArrayList<>(ruleNames));
+        profile = new Profile(ruleNames.size());
+        this.cuts = cuts;
+        startRule = rules.get(start);
+        parseGrammar = concat(startRule, eof());
+    }
+
+    /**
+     * Compiles a grammar in BNF form to Java bytecode and gets a ParserCombinator that runs it.
+     * The compiled ParserCombinator behaves exactly like new ParserCombinator(BNFGrammar),
+     * but parses without going through the closures of combinators. See GrammarCompiler.
+     * Compiling takes much longer than building the combinators, so this is only worthwhile for large inputs.
+     *
+     * @param BNFGrammar The grammar that the ParserCombinator should parse.
+     * @return A ParserCombinator for the grammar.
+     * @throws IllegalArgumentException if the grammar is invalid.
+     * @throws IllegalStateException if no Java compiler is available, as in a JRE without the jdk.compiler module.
+     */
+    public static ParserCombinator compile(String BNFGrammar) {
+        return GrammarCompiler.load(Grammar.parse(BNFGrammar));
+    }
+
+    /**
+     * Enables or disables packrat mode. In packrat mode, the Result of each named rule is memoized
+     * by its position in the input, so backtracking never parses the same rule at the same position twice.
+     * This makes parse time linear in the length of the input, at the cost of memory proportional to it.
+     * The memo table belongs to a single call to run() and is dropped when it returns.
+     * Packrat mode is disabled by default.
+     *
+     * @param enabled Whether runs of this ParserCombinator should memoize named rules.
+     */
+    public void setPackrat(boolean enabled) {
+        packrat = enabled;
+    }
+
+    /**
+     * Enables or disables profiling. While profiling is enabled, each run records, for every named rule,
+     * how many times the rule was applied, how many of those were answered by the packrat memo table,
+     * how many succeeded and failed, how many characters its alternatives matched before failing
+     * (input that the next alternative had to parse again), and how long the rule took,
+     * with and without the rules it applied. The counts of all profiled runs are added up; see profileReport().
+     * Profiling reads the clock twice per rule, so it slows parsing down. It is disabled by default.
+     *
+     * @param enabled Whether runs of this ParserCombinator should be profiled.
+     */
+    public void setProfiling(boolean enabled) {
+        profiling = enabled;
+    }
+
+    /**
+     * Gets the counts recorded by the profiled runs so far, as a table with one row per rule, slowest rule first.
+     * The total time of a recursive rule is timed from its outermost applications only, so time spent in its nested
+     * applications is counted once, and no rule's total time is more than the time of the runs.
+     *
+     * @return The profiling report.
+     */
+    public String profileReport() {
+        synchronized (profile) {
+            return profile.report(ruleNames);
+        }
+    }
+
+    /** Discards the counts recorded by the profiled runs so far. */
+    public void resetProfile() {
+        synchronized (profile) {
+            profile.clear();
+        }
+    }
+
+    /**
+     * Sets the semantic action of a named rule, replacing any previous action.
+     * A semantic action is a function from the values of a rule's children to the value of the rule.
+     * Terminal children are passed as Strings, and children that are themselves rules with actions
+     * are passed as the values their actions returned. Ignored terms and rules are never passed.
+     * A rule with no action passes the values of its children through to its parent, as if they were its parent's children.
+     *
+     * Actions are only applied by runActions(). They may be applied to productions that are later discarded
+     * by backtracking, so they should not have side effects.
+     *
+     * @param rule The name of the rule, without angle brackets.
+     * @param action The rule's semantic action, or null to remove it.
+     * @throws IllegalArgumentException if the grammar has no rule with the given name.
+     */
+    public synchronized void setAction(String rule, Function<List<Object>, Object> action) {
+        Integer number = ruleNumbers.get(rule);
+        if (number == null) {
+            throw new IllegalArgumentException("The grammar has no rule named <" + rule + ">.");
+        }
+        List<Function<List<Object>, Object>> updated = new ArrayList<>(actions);
+        updated.set(number, action);
+        actions = Collections.unmodifiableList(updated);
     }
 
+    /**
+     * Runs this ParserCombinator on the given input.
+     *
+     * @param input The string to parse.
+     * @return A ParseTree built from the Result of the parse.
+     */
     public ParseTree run(String input) {
-        return new ParseTree(parseGrammar.run(input));
+        return new ParseTree(parse(parseGrammar, new Stream(input, context(packrat, null))), input);
+    }
+
+    /**
+     * Parses the input of a previous run again after an edit, reusing every part of the previous ParseTree
+     * that the edit cannot have changed. The ParseTree returned is the same one run() would build for the edited input.
+     *
+     * A rule matched by the previous parse is reused if the parse had not looked at the edited text by the time
+     * the rule matched, or if the rule started after the edited text. Only the rules around the edit are parsed
+     * again, so parsing takes time proportional to the edit rather than to the input; copying the reused subtrees
+     * into the new tree is still linear, but much cheaper than parsing them.
+     * If the edited input fails to parse, it is parsed again from scratch, since reused rules do not report
+     * what they expected and the error would be incomplete.
+     *
+     * @param previous A ParseTree returned by run(String) or reparse() of this ParserCombinator.
+     * @param offset The position in the previous input where the edit starts.
+     * @param removed The number of characters the edit removes.
+     * @param inserted The text the edit inserts.
+     * @return A ParseTree of the edited input, which can itself be reparsed.
+     * @throws IllegalArgumentException if the previous tree does not keep its input, or the edit is out of its range.
+     */
+    public ParseTree reparse(ParseTree previous, int offset, int removed, String inserted) {
+        String input = previous.getInput();
+        if (input == null) {
+            throw new IllegalArgumentException("Only ParseTrees returned by run(String) or reparse() can be reparsed.");
+        }
+        if (offset < 0 || removed < 0 || offset + removed > input.length()) {
+            throw new IllegalArgumentException("The edit is outside of the previous input.");
+        }
+        String edited = input.substring(0, offset) + inserted + input.substring(offset + removed);
+        // reused Results are looked up through the memo table, so the run must be packrat
+        ParseContext context = context(true, null);
+        context.setReuse(previous.reuse(ruleNumbers, offset, removed, inserted.length()));
+        Result result = parse(parseGrammar, new Stream(edited, context));
+        if (result instanceof Result.Failure) {
+            return run(edited);
+        }
+        return new ParseTree(result, edited);
+    }
+
+    /**
+     * Runs this ParserCombinator on the given input, applying the semantic actions set with setAction()
+     * as each rule is matched. No parse tree is built.
+     *
+     * @param input The string to parse.
+     * @return The values produced by the start rule. If the start rule has an action, this is a single value.
+     * @throws ParseException if the input could not be parsed. The error offset is the position where parsing stopped.
+     */
+    public List<Object> runActions(String input) throws ParseException {
+        Result result = parse(parseGrammar, new Stream(input, context(packrat, actions)));
+        if (result instanceof Result.Failure) {
+            Result.Failure failure = (Result.Failure) result;
+            throw new ParseException(failure.describe(), failure.position());
+        }
+        return semanticValues(result.value);
+    }
+
+    /**
+     * Runs this ParserCombinator on the given input as a stream of parse events, without building a ParseTree.
+     *
+     * The input is parsed as a sequence of matches of the start rule. As soon as each match is complete, its events
+     * are reported to the listener in the order a ParseTree would list them, and the match is dropped along with any
+     * packrat memo entries. Memory use is therefore bounded by the largest single match of the start rule,
+     * not by the size of the input. A match cannot be reported before it is complete, because until then
+     * backtracking may still discard it.
+     *
+     * @param input The string to parse.
+     * @param listener The listener to report events to.
+     * @throws ParseException if some match of the start rule failed. Events for the earlier matches have already
+     *                        been reported. The error offset is the position where parsing stopped.
+     */
+    public void run(String input, ParseListener listener) throws ParseException {
+        ParseContext context = context(packrat, null);
+        Stream stream = new Stream(input, context);
+        while (!stream.atEnd()) {
+            Result result = parse(startRule, stream);
+            if (result instanceof Result.Failure) {
+                Result.Failure failure = (Result.Failure) result;
+                throw new ParseException(failure.describe(), failure.position());
+            }
+            if (result.rest.cursor() == stream.cursor()) {
+                throw new ParseException("The start rule matched no input.", stream.cursor());
+            }
+            emit(result.value, listener);
+            context.forget();
+            stream = result.rest;
+        }
+    }
+
+    /**
+     * Parses the input from a Reader as a sequence of matches of the start rule, building a ParseTree for each match.
+     * The input is read as the parse needs it, and each match is dropped from memory as soon as its ParseTree
+     * has been built, so memory use is bounded by the largest single match rather than by the size of the input.
+     *
+     * The returned Iterator is lazy: each call to next() parses one more match. If a match fails, the tree it returns
+     * holds the error (see ParseTree.assertSuccess()) and the iteration ends.
+     *
+     * @param reader The input. It is not closed.
+     * @return An Iterator over the ParseTrees of successive matches of the start rule.
+     * @throws UncheckedIOException from next() or hasNext() if reading the input fails.
+     */
+    public Iterator<ParseTree> runAll(Reader reader) {
+        return runAll(Source.of(reader));
+    }
+
+    /**
+     * Parses the input from an InputStream as a sequence of matches of the start rule. See runAll(Reader).
+     *
+     * @param input The input. It is not closed.
+     * @param charset The encoding of the input.
+     * @return An Iterator over the ParseTrees of successive matches of the start rule.
+     */
+    public Iterator<ParseTree> runAll(InputStream input, Charset charset) {
+        return runAll(new InputStreamReader(input, charset));
+    }
+
+    /**
+     * Parses a file as a sequence of matches of the start rule. See runAll(Reader).
+     * The file is memory-mapped rather than read. Files in a single-byte encoding (ISO-8859-1 or US-ASCII)
+     * are parsed in place, without copying them onto the heap. Files in other encodings, such as UTF-8,
+     * are decoded from the mapping in chunks as the parse needs them, like the input of runAll(Reader).
+     *
+     * @param file The file to parse.
+     * @param charset The encoding of the file.
+     * @return An Iterator over the ParseTrees of successive matches of the start rule.
+     * @throws IOException if the file cannot be opened or mapped.
+     * @throws UncheckedIOException from next() or hasNext() if the file is not valid in the given encoding.
+     */
+    public Iterator<ParseTree> runAll(Path file, Charset charset) throws IOException {
+        ByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(file)) {
+            // the mapping stays valid after the channel is closed
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (charset.equals(StandardCharsets.ISO_8859_1) || charset.equals(StandardCharsets.US_ASCII)) {
+            return runAll(Source.of(bytes));
+        }
+        return runAll(Source.of(bytes, charset));
+    }
+
+    /**
+     * Gets the lazy Iterator of runAll().
+     *
+     * @param source The input.
+     * @return An Iterator over the ParseTrees of successive matches of the start rule.
+     */
+    private Iterator<ParseTree> runAll(Source source) {
+        ParseContext context = context(packrat, null);
+        return new Iterator<ParseTree>() {
+            private Stream stream = new Stream(source, context);
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                if (!done && stream.atEnd()) {
+                    done = true;
+                }
+                return !done;
+            }
+
+            @Override
+            public ParseTree next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Result result = match(stream);
+                ParseTree tree = new ParseTree(result);
+                if (result instanceof Result.Failure) {
+                    done = true;
+                } else {
+                    context.forget();
+                    stream = result.rest;
+                    source.release(stream.cursor());
+                }
+                return tree;
+            }
+        };
+    }
+
+    /**
+     * Parses the input as a sequence of matches of the start rule, like runAll(), but splits it into parts
+     * that are parsed in parallel on the common ForkJoinPool. The ParseTrees of all parts are returned in input order.
+     *
+     * The input is split at the given boundaries, which should be positions where a match of the start rule begins
+     * when the input is parsed from the start, such as the starts of a file's top-level forms. They are only hints:
+     * if the matches of one part do not end exactly at the start of the next, the input from there on is parsed
+     * sequentially instead, so the ParseTrees are always those that runAll() would produce.
+     *
+     * @param input The string to parse.
+     * @param boundaries Positions in the input, in increasing order, where the input may be split.
+     * @return The ParseTrees of successive matches of the start rule. If a match fails, its tree holds the error
+     *         (see ParseTree.assertSuccess()) and is the last one.
+     */
+    public List<ParseTree> runParallel(String input, int[] boundaries) {
+        int[] starts = new int[boundaries.length + 2];
+        int parts = 0;
+        for (int boundary : boundaries) {
+            if (boundary > starts[parts] && boundary < input.length()) {
+                starts[++parts] = boundary;
+            }
+        }
+        starts[++parts] = input.length();
+        Source source = Source.of(input);
+        List<Part> results = ForkJoinPool.commonPool().invoke(new ParseParts(source, Arrays.copyOf(starts, parts + 1), 0, parts));
+
+        List<ParseTree> trees = new ArrayList<>();
+        int position = 0;
+        for (Part part : results) {
+            if (part.start != position) {
+                break; // the boundary was not the start of a match
+            }
+            trees.addAll(part.trees);
+            if (part.failed) {
+                return trees;
+            }
+            position = part.end;
+        }
+        if (position < input.length()) {
+            ParseContext context = context(packrat, null);
+            trees.addAll(parsePart(new Stream(source, context).move(position), input.length()).trees);
+        }
+        return trees;
+    }
+
+    /**
+     * Parses a range of the parts of the input given to runParallel(), splitting it in half until it is small enough
+     * to parse sequentially.
+     */
+    private final class ParseParts extends RecursiveTask<List<Part>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Source source;
+        private final int[] starts;
+        private final int from;
+        private final int to;
+
+        /**
+         * Constructor.
+         * @param source The input.
+         * @param starts The start of each part, followed by the end of the input.
+         * @param from The index of the first part of the range.
+         * @param to The index just after the last part of the range.
+         */
+        ParseParts(Source source, int[] starts, int from, int to) {
+            this.source = source;
+            this.starts = starts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Part> compute() {
+            int parts = starts.length - 1;
+            if (to - from <= Math.max(1, parts / (ForkJoinPool.getCommonPoolParallelism() * PARTS_PER_THREAD))) {
+                Stream stream = new Stream(source, context(packrat, null)).move(starts[from]);
+                return Collections.singletonList(parsePart(stream, starts[to]));
+            }
+            int middle = (from + to) >>> 1;
+            ParseParts second = new ParseParts(source, starts, middle, to);
+            second.fork();
+            List<Part> results = new ArrayList<>(new ParseParts(source, starts, from, middle).compute());
+            results.addAll(second.join());
+            return results;
+        }
+    }
+    /** How many tasks each thread of the pool gets, so that threads which finish early can steal more work. */
+    private static final int PARTS_PER_THREAD = 8;
+
+    /** The ParseTrees of one part of the input given to runParallel(). */
+    private static final class Part {
+        final int start;
+        final List<ParseTree> trees = new ArrayList<>();
+        /** The position where the last match ended. */
+        int end;
+        /** Whether the last match failed. */
+        boolean failed;
+
+        Part(int start) {
+            this.start = start;
+            end = start;
+        }
+    }
+
+    /**
+     * Parses matches of the start rule until one fails or the given position is reached or passed.
+     *
+     * @param stream The input, from the start of the part.
+     * @param end The position to stop at.
+     * @return The ParseTrees of the part.
+     */
+    private Part parsePart(Stream stream, int end) {
+        Part part = new Part(stream.cursor());
+        ParseContext context = stream.getContext();
+        while (part.end < end && !part.failed) {
+            Result result = match(stream);
+            part.trees.add(new ParseTree(result));
+            if (result instanceof Result.Failure) {
+                part.failed = true;
+            } else {
+                context.forget();
+                stream = result.rest;
+                part.end = stream.cursor();
+            }
+        }
+        return part;
+    }
+
+    /**
+     * Parses one match of the start rule, as runAll() and runParallel() do.
+     * @param stream The input, from the start of the match.
+     * @return The Result of the start rule, or a Failure if it matched no input.
+     */
+    private Result match(Stream stream) {
+        Result result = parse(startRule, stream);
+        if (result instanceof Result.Success && result.rest.cursor() == stream.cursor()) {
+            result = new Result.Failure(Symbol.value("The start rule matched no input."), stream.detach());
+        }
+        return result;
+    }
+
+    /**
+     * Reports the Symbols of a successful Result's value to a listener.
+     * A nonterminal Symbol and the child marker after it enter a rule, and the matching parent marker exits it.
+     *
+     * @param value The value of a Success.
+     * @param listener The listener to report events to.
+     */
+    private static void emit(Rope value, ParseListener listener) {
+        List<Symbol> open = new ArrayList<>();
+        for (Symbol symbol : value) {
+            switch (symbol.getType()) {
+                case NONTERMINAL:
+                    open.add(symbol);
+                    listener.enterRule(symbol.getValue(), symbol.getStart(), symbol.getEnd());
+                    break;
+                case PARENT_MARKER:
+                    Symbol rule = open.remove(open.size() - 1);
+                    listener.exitRule(rule.getValue(), rule.getStart(), rule.getEnd());
+                    break;
+                case VALUE:
+                    listener.terminal(symbol.getValue(), symbol.getStart(), symbol.getEnd());
+                    break;
+                default:
+                    break; // child markers always follow a nonterminal, which already entered the rule
+            }
+        }
+    }
+
+    /**
+     * Creates the ParseContext of a run, which is profiled if profiling is enabled,
+     * and tracks the choices that cuts commit if the grammar has cuts.
+     *
+     * @param packrat Whether named rules should memoize their Results during the run.
+     * @param actions The semantic action of each named rule, or null if the run should build a parse tree.
+     * @return The ParseContext of the run.
+     */
+    private ParseContext context(boolean packrat, List<Function<List<Object>, Object>> actions) {
+        ParseContext context = new ParseContext(packrat, actions);
+        if (cuts != null) {
+            context.setCuts(cuts);
+        }
+        if (profiling) {
+            context.setProfile(new Profile(ruleNames.size()));
+        }
+        return context;
+    }
+
+    /**
+     * Runs a Parser on a Stream.
+     * Nested rule applications are moved to new threads as they get deep, so the depth of nesting that can be
+     * parsed does not depend on the stack size of the calling thread. See ParseContext.nest().
+     * If the run is profiled, its counts are added to the totals of this ParserCombinator when the parse ends.
+     *
+     * @param parser The Parser to run.
+     * @param input The Stream to parse, created for this run.
+     * @return The Result of the parse.
+     */
+    private Result parse(Parser parser, Stream input) {
+        Profile counts = input.getContext().getProfile();
+        try {
+            return parser.run(input);
+        } finally {
+            if (counts != null) {
+                synchronized (profile) {
+                    profile.add(counts);
+                }
+                counts.clear();
+            }
+        }
     }
 }
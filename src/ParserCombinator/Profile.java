@@ -0,0 +1,186 @@
+package ParserCombinator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Counts how often each named rule of a grammar is applied and how long it takes. See ParserCombinator.setProfiling().
+ *
+ * A run that is profiled has its own Profile in its ParseContext, which is only ever used by the thread running it,
+ * so recording needs no synchronization. When the run ends, its Profile is added to the ParserCombinator's totals.
+ * Every count is kept in an array indexed by rule number, so recording an application of a rule does not allocate.
+ *
+ * @author Max Kopinsky
+ */
+final class Profile {
+    /** The number of times each rule was applied, including applications answered by the memo table. */
+    private final long[] calls;
+    /** The number of applications of each rule that were answered by the memo table without running the rule. */
+    private final long[] hits;
+    /** The number of applications of each rule that succeeded. */
+    private final long[] successes;
+    /** The number of applications of each rule that failed. */
+    private final long[] failures;
+    /** The number of characters matched by alternatives of each rule that then failed, so that the next alternative started over. */
+    private final long[] backtracked;
+    /**
+     * The time spent running each rule, including the rules it applied, in nanoseconds.
+     * Only the outermost application of a recursive rule is timed, so time spent in nested applications is counted once.
+     */
+    private final long[] total;
+    /** The time spent running each rule, excluding the rules it applied, in nanoseconds. */
+    private final long[] self;
+
+    /** The number of applications of each rule that are being run. */
+    private final int[] active;
+    /** Each rule that is being run, innermost last. */
+    private int[] running = new int[64];
+    /** The start time of each rule that is being run, innermost last. */
+    private long[] starts = new long[64];
+    /** The time spent in the rules applied by each rule that is being run, innermost last. */
+    private long[] children = new long[64];
+    /** The number of rules that are being run. */
+    private int depth;
+
+    /**
+     * Constructor.
+     * @param rules The number of rules of the grammar.
+     */
+    Profile(int rules) {
+        calls = new long[rules];
+        hits = new long[rules];
+        successes = new long[rules];
+        failures = new long[rules];
+        backtracked = new long[rules];
+        total = new long[rules];
+        self = new long[rules];
+        active = new int[rules];
+    }
+
+    /**
+     * Records an application of a rule that was answered by the memo table.
+     * @param rule The number of the rule.
+     * @param result The memoized Result.
+     */
+    void hit(int rule, Result result) {
+        calls[rule]++;
+        hits[rule]++;
+        if (result instanceof Result.Success) {
+            successes[rule]++;
+        } else {
+            failures[rule]++;
+        }
+    }
+
+    /**
+     * Records that a rule is about to be run. Must be followed by exit() once the rule returns.
+     * @param rule The number of the rule.
+     */
+    void enter(int rule) {
+        if (depth == starts.length) {
+            running = Arrays.copyOf(running, depth * 2);
+            starts = Arrays.copyOf(starts, depth * 2);
+            children = Arrays.copyOf(children, depth * 2);
+        }
+        running[depth] = rule;
+        active[rule]++;
+        children[depth] = 0;
+        starts[depth++] = System.nanoTime();
+    }
+
+    /**
+     * Records that the rule most recently entered has returned.
+     *
+     * @param rule The number of the rule.
+     * @param result The Result of the rule.
+     */
+    void exit(int rule, Result result) {
+        long elapsed = System.nanoTime() - starts[--depth];
+        calls[rule]++;
+        if (--active[rule] == 0) {
+            total[rule] += elapsed;
+        }
+        self[rule] += elapsed - children[depth];
+        if (depth > 0) {
+            children[depth - 1] += elapsed;
+        }
+        if (result instanceof Result.Success) {
+            successes[rule]++;
+        } else {
+            failures[rule]++;
+        }
+    }
+
+    /**
+     * Records that an alternative of the rule that is being run failed after matching some of the input.
+     * @param characters The number of characters the alternative matched before it failed.
+     */
+    void backtrack(int characters) {
+        if (depth > 0) {
+            backtracked[running[depth - 1]] += characters;
+        }
+    }
+
+    /**
+     * Adds the counts of another Profile of the same grammar to this one.
+     * @param other The Profile to add.
+     */
+    void add(Profile other) {
+        for (int rule = 0; rule < calls.length; rule++) {
+            calls[rule] += other.calls[rule];
+            hits[rule] += other.hits[rule];
+            successes[rule] += other.successes[rule];
+            failures[rule] += other.failures[rule];
+            backtracked[rule] += other.backtracked[rule];
+            total[rule] += other.total[rule];
+            self[rule] += other.self[rule];
+        }
+    }
+
+    /** Resets every count to zero, and forgets the rules that are being run. */
+    void clear() {
+        Arrays.fill(calls, 0);
+        Arrays.fill(hits, 0);
+        Arrays.fill(successes, 0);
+        Arrays.fill(failures, 0);
+        Arrays.fill(backtracked, 0);
+        Arrays.fill(total, 0);
+        Arrays.fill(self, 0);
+        Arrays.fill(active, 0);
+        depth = 0;
+    }
+
+    /**
+     * Formats the counts as a table with one row per rule that was applied, slowest rule first.
+     * Rules are ordered by the time spent in them excluding the rules they applied, since that is the time
+     * that changing the rule itself can save.
+     *
+     * @param ruleNames The name of each rule, indexed by rule number.
+     * @return The report.
+     */
+    String report(List<String> ruleNames) {
+        List<Integer> applied = new ArrayList<>();
+        for (int rule = 0; rule < calls.length; rule++) {
+            if (calls[rule] > 0) {
+                applied.add(rule);
+            }
+        }
+        applied.sort(Comparator.comparingLong((Integer rule) -> self[rule]).reversed()
+                .thenComparing(Comparator.comparingLong((Integer rule) -> calls[rule]).reversed()));
+        int width = "rule".length();
+        for (int rule : applied) {
+            width = Math.max(width, ruleNames.get(rule).length() + 2);
+        }
+        String row = "%-" + width + "s %12s %12s %12s %12s %12s %10s %10s%n";
+        StringBuilder report = new StringBuilder(String.format(row,
+                "rule", "calls", "memo hits", "successes", "failures", "backtracked", "total ms", "self ms"));
+        for (int rule : applied) {
+            report.append(String.format(row, "<" + ruleNames.get(rule) + ">", calls[rule], hits[rule],
+                    successes[rule], failures[rule], backtracked[rule],
+                    String.format("%.3f", total[rule] / 1e6), String.format("%.3f", self[rule] / 1e6)));
+        }
+        return report.toString();
+    }
+}
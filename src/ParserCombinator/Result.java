@@ -1,7 +1,7 @@
 package ParserCombinator;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -9,9 +9,10 @@ import java.util.function.Function;
 /**
  * Class representing an abstract data type which contains the result of a parser and the remaining unparsed Stream.
  *
- * In the words of category theory, Results "close over" the category of Lists of Symbols and the category of Streams,
+ * In the words of category theory, Results "close over" the category of Ropes of Symbols and the category of Streams,
  * and we say that the "closure" of a Result is the combination of its value and stored Stream.
- * We can also write Result = (List<Symbol> X Stream), using the cartesian product, to express this relationship.
+ * We can also write Result = (Rope X Stream), using the cartesian product, to express this relationship.
+ * Both Ropes and Streams are immutable, so a Result can be shared freely.
  *
  * Whether the parser succeeded or failed is encoded in whether the result is a Success or a Failure.
  *
@@ -24,18 +25,18 @@ import java.util.function.Function;
 abstract class Result {
     /**
      * The actual result of the parser which produced this Result.
-     * The tree structure of the parse is explicit in the list through use of Child and Parent marker Symbols.
+     * The tree structure of the parse is explicit in the Rope through use of Child and Parent marker Symbols.
      */
-    List<Symbol> value;
+    final Rope value;
     /** The remaining unparsed portion of parsed Stream. */
-    Stream rest;
+    final Stream rest;
 
     /**
      * Explicit constructor.
      * @param v The value of this result.
      * @param r The remaining unparsed Stream.
      */
-    Result(List<Symbol> v, Stream r) {
+    Result(Rope v, Stream r) {
         value = v;
         rest = r;
     }
@@ -45,15 +46,13 @@ abstract class Result {
      * @param r The remaining unparsed Stream.
      */
     Result(Symbol v, Stream r) {
-        List<Symbol> newList = new ArrayList<>();
-        newList.add(v);
-        value = newList;
+        value = Rope.of(v);
         rest = r;
     }
 
     /**
      * Returns a string representation of the Result. Only the Result's value is considered.
-     * See List.toString().
+     * See Rope.toString().
      * @return A string representation of the Result.
      */
     @Override
@@ -63,32 +62,32 @@ abstract class Result {
 
     /**
      * Maps a Success with value v to a new Success whose value is fn(v).
-     * @param fn A function fn : List<Symbol> -> List<Symbol> to apply to the Result.
+     * @param fn A function fn : Rope -> Rope to apply to the Result.
      * @return A Result representing the Result after mapping.
      */
-    abstract Result map(Function<List<Symbol>, List<Symbol>> fn);
+    abstract Result map(Function<Rope, Rope> fn);
     /**
      * Maps a Success with value v to a new Success whose value is success(v).
      * Maps a Failure with value e to a new Failure whose value is failure(e).
      *
-     * @param success A function success : List<Symbol> -> List<Symbol> to apply to Success Results.
-     * @param failure A function failure : List<Symbol> -> List<Symbol> to apply to Failure Results.
+     * @param success A function success : Rope -> Rope to apply to Success Results.
+     * @param failure A function failure : Rope -> Rope to apply to Failure Results.
      * @return A Result representing this Result after mapping.
      */
-    abstract Result bimap(Function<List<Symbol>, List<Symbol>> success, Function<List<Symbol>, List<Symbol>> failure);
+    abstract Result bimap(Function<Rope, Rope> success, Function<Rope, Rope> failure);
     /**
      * Maps a Success to the Result returned by a given function applied to the Success.
      * Used for "chaining" results together with the function (v, s) -> f.apply(v).run(s)
-     * where f : List<Symbol> -> Parser. The normal f is constructed from a Parser p2
+     * where f : Rope -> Parser. The normal f is constructed from a Parser p2
      * and an existing Parser p1 which returns the Result with value vs (for values)
-     * and maps the Value of p2's Result, v, to vs.addAll(v). See Combinators.concat(Parser p1, Parser p2).
+     * and maps the Value of p2's Result, v, to vs.append(v). See Combinators.concat(Parser p1, Parser p2).
      *
      * The end result under such an fn is that chaining to Results concatenates their values.
      *
-     * @param fn A function fn : Result = (List<Symbol> X Stream) -> Result to apply to Success Results.
+     * @param fn A function fn : Result = (Rope X Stream) -> Result to apply to Success Results.
      * @return A chained Result.
      */
-    abstract Result chain(BiFunction<List<Symbol>, Stream, Result> fn);
+    abstract Result chain(BiFunction<Rope, Stream, Result> fn);
     /**
      * Folds a Result into a new Result. A "fold" is a collapse of a Result.
      * For example, the combinator not(Parser p) takes the Result of p,
@@ -98,11 +97,11 @@ abstract class Result {
      * This type of fold can be thought of as a bimap, and in fact they are nearly interchangeable.
      * The difference is that a fold collapses into a Result, whereas a bimap only "folds" the values of Results.
      *
-     * @param success A function success : Result = (List<Symbol> X Stream) -> Result to fold Successes under.
-     * @param failure A function failure : Result = (List<Symbol> X Stream) -> Result to fold Failures under.
+     * @param success A function success : Result = (Rope X Stream) -> Result to fold Successes under.
+     * @param failure A function failure : Result = (Rope X Stream) -> Result to fold Failures under.
      * @return The folded Result.
      */
-    abstract Result fold(BiFunction<List<Symbol>, Stream, Result> success, BiFunction<List<Symbol>, Stream, Result> failure);
+    abstract Result fold(BiFunction<Rope, Stream, Result> success, BiFunction<Rope, Stream, Result> failure);
     /**
      * Folds a Result into a void behavior. This collapses the result completely;
      * a behavior is executed based on the Result and no Result is given back.
@@ -120,7 +119,7 @@ abstract class Result {
      * A class representing a successful Result of a parser.
      */
     static class Success extends Result {
-        Success(List<Symbol> value, Stream rest) {
+        Success(Rope value, Stream rest) {
             super(value, rest);
         }
         Success(Symbol v, Stream rest) {
@@ -128,19 +127,19 @@ abstract class Result {
         }
 
         /** The application of map on Successes. Applies fn() to value. */
-        Result map(Function<List<Symbol>, List<Symbol>> fn) {
+        Result map(Function<Rope, Rope> fn) {
             return new Success(fn.apply(value), rest);
         }
         /** The application of bimap on Successes. Applies success() to value. */
-        Result bimap(Function<List<Symbol>, List<Symbol>> success, Function<List<Symbol>, List<Symbol>> failure) {
+        Result bimap(Function<Rope, Rope> success, Function<Rope, Rope> failure) {
             return new Success(success.apply(value), rest);
         }
         /** The application of chain on successes. Applies fn() to the closure of the Success. */
-        Result chain(BiFunction<List<Symbol>, Stream, Result> fn) {
+        Result chain(BiFunction<Rope, Stream, Result> fn) {
             return fn.apply(value, rest);
         }
         /** The application of Result -> Result folds on Successes. Applies success() to the closure of the Success. */
-        Result fold(BiFunction<List<Symbol>, Stream, Result> success, BiFunction<List<Symbol>, Stream, Result> failure) {
+        Result fold(BiFunction<Rope, Stream, Result> success, BiFunction<Rope, Stream, Result> failure) {
             return success.apply(value, rest);
         }
         /** The application of Result -> {} folds on Successes. Applies success() to value, and returns the Success for convenience. */
@@ -152,9 +151,14 @@ abstract class Result {
 
     /**
      * A class representing the result of a failed parser. A Failure's "value" should be thought of as its "error".
+     *
+     * Failures are cheap to create: a Failure's value is a label naming what was expected, prepared when the
+     * failing Parser was built, so no message is formatted while parsing. Terminal Parsers also record their
+     * failures in the ParseContext of the run, which keeps only those at the farthest position reached.
+     * A readable message is rendered by describe() only once a Failure is the final Result of a run.
      */
     static class Failure extends Result {
-        Failure(List<Symbol> value, Stream rest) {
+        Failure(Rope value, Stream rest) {
             super(value, rest);
         }
         Failure(Symbol value, Stream rest) {
@@ -162,19 +166,19 @@ abstract class Result {
         }
 
         /** The application of map on Failures. Returns the Failure unchanged. */
-        Result map(Function<List<Symbol>, List<Symbol>> fn) {
+        Result map(Function<Rope, Rope> fn) {
             return this;
         }
         /** The application of bimap on Failures. Applies failure() to value. */
-        Result bimap(Function<List<Symbol>, List<Symbol>> success, Function<List<Symbol>, List<Symbol>> failure) {
+        Result bimap(Function<Rope, Rope> success, Function<Rope, Rope> failure) {
             return new Failure(failure.apply(value), rest);
         }
         /** The application of chain on Failures. Returns the Failure unchanged. */
-        Result chain(BiFunction<List<Symbol>, Stream, Result> fn) {
+        Result chain(BiFunction<Rope, Stream, Result> fn) {
             return this;
         }
         /** The application of Result -> Result folds on Failures. Applies failure() to the closure of the Failure. */
-        Result fold(BiFunction<List<Symbol>, Stream, Result> success, BiFunction<List<Symbol>, Stream, Result> failure) {
+        Result fold(BiFunction<Rope, Stream, Result> success, BiFunction<Rope, Stream, Result> failure) {
             return failure.apply(value, rest);
         }
         /** The application of Result -> {} folds on Failures. Applies failure() to value, and returns the Failure for convenience. */
@@ -182,5 +186,54 @@ abstract class Result {
             failure.accept(this);
             return this;
         }
+
+        /**
+         * Gets the position in the input where the parse stopped. This is the farthest position at which
+         * a terminal Parser of the run failed, or the position of this Failure if the run recorded no failures.
+         *
+         * @return The offset in the input where the parse stopped.
+         */
+        int position() {
+            ParseContext context = rest.getContext();
+            if (context == null || context.getFarthest() == null) {
+                return rest.cursor();
+            }
+            return context.getFarthest().cursor();
+        }
+
+        /**
+         * Renders the error message of this Failure. If the run recorded failures, the message lists everything
+         * that was expected at the farthest position reached. Otherwise, it lists the labels in this Failure's value.
+         *
+         * @return A human-readable description of this Failure.
+         */
+        String describe() {
+            ParseContext context = rest.getContext();
+            if (context == null || context.getFarthest() == null) {
+                StringBuilder error = new StringBuilder();
+                for (Symbol symbol : value) {
+                    error.append(error.length() == 0 ? "" : ", ").append(symbol);
+                }
+                return "The parser failed with error: " + error + "\nUnparsed input:\n" + rest;
+            }
+            Stream at = context.getFarthest();
+            Set<String> items = new LinkedHashSet<>();
+            for (Rope label : context.getExpected()) {
+                for (Symbol symbol : label) {
+                    items.add(symbol.toString());
+                }
+            }
+            StringBuilder expected = new StringBuilder();
+            int i = 0;
+            for (String item : items) {
+                expected.append(i == 0 ? "" : i == items.size() - 1 ? " or " : ", ").append(item);
+                i++;
+            }
+            String found = at.atEnd() ? "end of input"
+                    : at.head() == '\n' ? "end of line"
+                    : "\"" + at.head() + "\"";
+            return "The parser failed at " + at.position() + ": expected " + expected + ", found " + found + "."
+                    + "\nUnparsed input:\n" + at;
+        }
     }
 }
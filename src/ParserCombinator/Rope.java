@@ -0,0 +1,180 @@
+package ParserCombinator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable sequence of Symbols, used as the value of Results.
+ *
+ * Ropes are persistent: appending two Ropes takes constant time and shares both of them rather than
+ * copying either. This lets Parsers wrap, concatenate, and repeat the values of their sub-Parsers in constant time,
+ * and lets the same value be shared by several Results (for example by the packrat memo table).
+ * Iterating over a Rope takes time linear in its size, regardless of how it was built.
+ *
+ * @author Max Kopinsky
+ */
+abstract class Rope implements Iterable<Symbol> {
+    /** The Rope containing no Symbols. */
+    static final Rope EMPTY = new Empty();
+
+    /** Private constructor. All Ropes should be created from EMPTY, of(), and append(). */
+    private Rope() {}
+
+    /**
+     * Static factory method to make a Rope containing one Symbol.
+     * @param symbol The Symbol in the Rope.
+     * @return A Rope containing only the given Symbol.
+     */
+    static Rope of(Symbol symbol) {
+        return new Leaf(symbol);
+    }
+
+    /**
+     * Gets the number of Symbols in this Rope.
+     * @return The size of this Rope.
+     */
+    abstract int size();
+
+    /**
+     * Convenience method for checking whether size() == 0.
+     * @return Whether this Rope contains no Symbols.
+     */
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Gets a Rope containing the Symbols of this Rope followed by the Symbols of another. Takes constant time.
+     * @param other The Rope to append.
+     * @return The concatenation of this Rope and the other.
+     */
+    Rope append(Rope other) {
+        if (other.isEmpty()) {
+            return this;
+        }
+        if (isEmpty()) {
+            return other;
+        }
+        return new Concat(this, other);
+    }
+
+    /**
+     * Gets a Rope containing the Symbols of this Rope followed by the given Symbol. Takes constant time.
+     * @param symbol The Symbol to append.
+     * @return This Rope with the Symbol appended.
+     */
+    Rope append(Symbol symbol) {
+        return append(of(symbol));
+    }
+
+    /**
+     * Gets a Rope containing the given Symbol followed by the Symbols of this Rope. Takes constant time.
+     * @param symbol The Symbol to prepend.
+     * @return This Rope with the Symbol prepended.
+     */
+    Rope prepend(Symbol symbol) {
+        return of(symbol).append(this);
+    }
+
+    /**
+     * Copies the Symbols of this Rope into a new List, in order.
+     * @return A mutable List of this Rope's Symbols.
+     */
+    List<Symbol> toList() {
+        List<Symbol> list = new ArrayList<>(size());
+        for (Symbol symbol : this) {
+            list.add(symbol);
+        }
+        return list;
+    }
+
+    /**
+     * Iterates over the Symbols of this Rope in order.
+     * The iterator keeps its own stack of unvisited Ropes, so deeply nested Ropes do not use the Java stack.
+     *
+     * @return An iterator over this Rope's Symbols.
+     */
+    @Override
+    public Iterator<Symbol> iterator() {
+        return new Iterator<Symbol>() {
+            private final Deque<Rope> pending = new ArrayDeque<>();
+            {
+                pending.push(Rope.this);
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (!pending.isEmpty()) {
+                    Rope top = pending.peek();
+                    if (top instanceof Leaf) {
+                        return true;
+                    }
+                    pending.pop();
+                    if (top instanceof Concat) {
+                        pending.push(((Concat) top).right);
+                        pending.push(((Concat) top).left);
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public Symbol next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return ((Leaf) pending.pop()).symbol;
+            }
+        };
+    }
+
+    /**
+     * Returns a string representation of this Rope, formatted like a List of its Symbols.
+     * @return A string representation of this Rope.
+     */
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+
+    /** The empty Rope. */
+    private static final class Empty extends Rope {
+        int size() {
+            return 0;
+        }
+    }
+
+    /** A Rope containing a single Symbol. */
+    private static final class Leaf extends Rope {
+        private final Symbol symbol;
+
+        Leaf(Symbol s) {
+            symbol = s;
+        }
+
+        int size() {
+            return 1;
+        }
+    }
+
+    /** A Rope made of two non-empty Ropes. */
+    private static final class Concat extends Rope {
+        private final Rope left;
+        private final Rope right;
+        private final int size;
+
+        Concat(Rope l, Rope r) {
+            left = l;
+            right = r;
+            size = l.size() + r.size();
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
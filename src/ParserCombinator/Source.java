@@ -0,0 +1,338 @@
+package ParserCombinator;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * The input that the Streams of a run are views of.
+ *
+ * A Source is either text that is entirely available, such as a String or a memory-mapped file of single-byte text,
+ * or input that is read or decoded into a sliding buffer as Parsers ask for more of it, such as a Reader
+ * or a memory-mapped file in another encoding.
+ * Positions are always offsets from the start of the input, whichever kind of Source it is.
+ *
+ * @author Max Kopinsky
+ */
+abstract class Source {
+    /** Private constructor. All Sources should be created with of(). */
+    private Source() {}
+
+    /**
+     * Static factory for a Source over text that is already available.
+     * @param text The input.
+     * @return A Source over the given text.
+     */
+    static Source of(CharSequence text) {
+        return new Text(text);
+    }
+
+    /**
+     * Static factory for a Source over bytes holding single-byte (ISO-8859-1 or ASCII) text, such as a memory-mapped file.
+     * Characters are read directly from the buffer, so the text is never copied onto the heap.
+     *
+     * @param bytes The input. Its position is the start of the input, and its limit the end.
+     * @return A Source over the given bytes.
+     */
+    static Source of(ByteBuffer bytes) {
+        return new Text(new Bytes(bytes.slice()));
+    }
+
+    /**
+     * Static factory for a Source over encoded bytes, such as a memory-mapped file, that decodes them as they are needed.
+     * The bytes are decoded in chunks straight into the sliding buffer of the Source, so, as with a Reader,
+     * only the input after the last released position is kept on the heap.
+     *
+     * @param bytes The input. Its position is the start of the input, and its limit the end.
+     * @param charset The encoding of the input.
+     * @return A Source over the given bytes.
+     */
+    static Source of(ByteBuffer bytes, Charset charset) {
+        return new Buffered(new Decoder(bytes.slice(), charset.newDecoder()));
+    }
+
+    /**
+     * Static factory for a Source that reads its input from a Reader as it is needed.
+     * Only the input after the last released position is kept in memory.
+     *
+     * @param reader The input. The Source does not close it.
+     * @return A Source over the given Reader.
+     */
+    static Source of(Reader reader) {
+        return new Buffered(reader);
+    }
+
+    /**
+     * Makes as much of the input available as possible, up to the given position.
+     * @param end The position just after the last character that is needed.
+     * @return The smaller of end and the length of the input.
+     * @throws UncheckedIOException if reading the input fails.
+     */
+    abstract int fill(int end);
+
+    /**
+     * Gets the end of part of the input if it is already available, without reading.
+     * @param end The position just after the last character of the part.
+     * @return The smaller of end and the length of the input, or -1 if that is not known without reading.
+     */
+    abstract int available(int end);
+
+    /**
+     * Gets a character of the input. The character must have been made available by fill().
+     * @param index The position of the character.
+     * @return The character at the given position.
+     */
+    abstract char charAt(int index);
+
+    /**
+     * Copies part of the input into a String. The part must have been made available by fill().
+     * @param start The position of the first character.
+     * @param end The position just after the last character.
+     * @return The characters between start and end.
+     */
+    abstract String substring(int start, int end);
+
+    /**
+     * Declares that the input before a position will never be read again, so it need not be kept.
+     * @param index The position of the first character that may still be read.
+     */
+    void release(int index) {}
+
+    /**
+     * Whether the whole input is available without reading.
+     * Streams over such Sources can be matched against without limiting them to a window. See Stream.window().
+     * @return True if the length of the input is known.
+     */
+    abstract boolean isComplete();
+
+    /**
+     * Describes a position in the input, for error messages.
+     * @param index The position. The input before it must not have been released.
+     * @return The line and column of the position, both counted from 1.
+     */
+    String position(int index) {
+        int[] lineColumn = {1, 1};
+        advance(lineColumn, 0, index);
+        return "line " + lineColumn[0] + ", column " + lineColumn[1];
+    }
+
+    /**
+     * Advances a line and column over part of the input.
+     * @param lineColumn The line and column at start, updated to the line and column at end.
+     * @param start The position to start from.
+     * @param end The position to stop at.
+     */
+    void advance(int[] lineColumn, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (charAt(i) == '\n') {
+                lineColumn[0]++;
+                lineColumn[1] = 1;
+            } else {
+                lineColumn[1]++;
+            }
+        }
+    }
+
+    /** A Source over text that is entirely available. */
+    private static final class Text extends Source {
+        private final CharSequence text;
+
+        Text(CharSequence t) {
+            text = t;
+        }
+
+        int fill(int end) {
+            return Math.min(end, text.length());
+        }
+
+        int available(int end) {
+            return Math.min(end, text.length());
+        }
+
+        char charAt(int index) {
+            return text.charAt(index);
+        }
+
+        String substring(int start, int end) {
+            return text.subSequence(start, end).toString();
+        }
+
+        boolean isComplete() {
+            return true;
+        }
+    }
+
+    /** A view of a buffer of single-byte characters as text. */
+    private static final class Bytes implements CharSequence {
+        private final ByteBuffer bytes;
+
+        Bytes(ByteBuffer b) {
+            bytes = b;
+        }
+
+        @Override
+        public int length() {
+            return bytes.limit();
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes.get(index) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            char[] chars = new char[end - start];
+            for (int i = start; i < end; i++) {
+                chars[i - start] = charAt(i);
+            }
+            return new String(chars);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+    }
+
+    /**
+     * A Reader that decodes a buffer of bytes. Malformed input is reported as it is by the Readers of Files.
+     */
+    private static final class Decoder extends Reader {
+        private final ByteBuffer bytes;
+        private final CharsetDecoder decoder;
+        /** Whether all of the bytes have been decoded. */
+        private boolean decoded;
+        /** Whether the decoder has been flushed after all of the bytes were decoded. */
+        private boolean flushed;
+
+        Decoder(ByteBuffer b, CharsetDecoder d) {
+            bytes = b;
+            decoder = d;
+        }
+
+        @Override
+        public int read(char[] chars, int offset, int length) throws IOException {
+            CharBuffer out = CharBuffer.wrap(chars, offset, length);
+            if (!decoded) {
+                CoderResult result = decoder.decode(bytes, out, true);
+                if (result.isError()) {
+                    result.throwException();
+                }
+                decoded = result.isUnderflow();
+            }
+            if (decoded && !flushed) {
+                flushed = decoder.flush(out).isUnderflow();
+            }
+            int read = out.position() - offset;
+            return read == 0 && flushed ? -1 : read;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    /**
+     * A Source that reads a Reader into a sliding buffer.
+     * When the buffer is full, the released part of it is dropped if that frees at least half of the buffer;
+     * otherwise the buffer grows. The buffer therefore stays within twice the largest unreleased part of the input.
+     */
+    private static final class Buffered extends Source {
+        private final Reader reader;
+        /** The buffered input. */
+        private char[] buffer = new char[8192];
+        /** The position of the first character of the buffer. */
+        private int offset;
+        /** The number of characters in the buffer. */
+        private int count;
+        /** The position before which the input has been released. */
+        private int released;
+        /** Whether the Reader has reached the end of the input. */
+        private boolean eof;
+        /** The line and column of offset, kept so that positions can still be described after input is dropped. */
+        private final int[] offsetLineColumn = {1, 1};
+
+        Buffered(Reader r) {
+            reader = r;
+        }
+
+        int fill(int end) {
+            while (offset + count < end && !eof) {
+                read();
+            }
+            return Math.min(end, offset + count);
+        }
+
+        int available(int end) {
+            if (end <= offset + count) {
+                return end;
+            }
+            return eof ? offset + count : -1;
+        }
+
+        /**
+         * Reads as much of the input as fits into the buffer, making room first if it is full.
+         * Room is also made when only one character is free, which cannot hold a surrogate pair.
+         */
+        private void read() {
+            if (buffer.length - count < 2) {
+                int drop = released - offset;
+                if (drop >= buffer.length / 2) {
+                    advance(offsetLineColumn, offset, released);
+                    System.arraycopy(buffer, drop, buffer, 0, count - drop);
+                    offset = released;
+                    count -= drop;
+                } else {
+                    char[] grown = new char[buffer.length * 2];
+                    System.arraycopy(buffer, 0, grown, 0, count);
+                    buffer = grown;
+                }
+            }
+            try {
+                int n = reader.read(buffer, count, buffer.length - count);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    count += n;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        char charAt(int index) {
+            if (index < offset) {
+                throw new IllegalStateException("Input before position " + offset + " has been released.");
+            }
+            return buffer[index - offset];
+        }
+
+        String substring(int start, int end) {
+            if (start < offset) {
+                throw new IllegalStateException("Input before position " + offset + " has been released.");
+            }
+            return new String(buffer, start - offset, end - start);
+        }
+
+        @Override
+        void release(int index) {
+            released = Math.max(released, Math.min(index, offset + count));
+        }
+
+        boolean isComplete() {
+            return false;
+        }
+
+        @Override
+        String position(int index) {
+            int[] lineColumn = offsetLineColumn.clone();
+            advance(lineColumn, offset, index);
+            return "line " + lineColumn[0] + ", column " + lineColumn[1];
+        }
+    }
+}
@@ -4,43 +4,199 @@ package ParserCombinator;
  * Class to wrap some string behavior and allow for much easier manipulation of input strings
  * by always holding onto the entire input string and making only a partial segment of it visible.
  *
+ * A Stream is a CharSequence view of its visible segment, so it can be matched against directly
+ * (for example by a regex Matcher) without copying the input.
+ *
+ * The input is a Source, which may be read lazily (for example from a Reader). The visible segment of a Stream
+ * over such a Source extends to the end of the input, so its length() is only known once all of the input
+ * has been read. Parsers should test for the end of input with atEnd() and match regexes against a window().
+ *
  * @author Max Kopinsky
  */
-class Stream {
-    /** The string underlying this stream. */
-    private String string;
-    /** This stream's start position in the underlying stream. */
+class Stream implements CharSequence {
+    /** Visible segments that extend to the end of the input end here. */
+    private static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    /** The input underlying this stream. */
+    private Source source;
+    /** This stream's start position in the underlying input. */
     private int cursor;
-    /** The number of characters of the underlying stream which are visible. */
-    private int length;
+    /** The position in the underlying input where this stream's visible segment ends, or UNBOUNDED. */
+    private int limit;
+    /** Where this stream's visible segment ends, if the input up to there had been read when it was created; otherwise -1. */
+    private int end;
+    /** The state of the run this stream belongs to. Null if the stream was not created by ParserCombinator.run(). */
+    private ParseContext context;
 
     /**
      * Full constructor. Only ever called inside this class when the stream is moved, to avoid reference interference.
-     * @param s The string this stream should store.
-     * @param c The position of this stream's cursor in the string.
-     * @param l The length of this stream.
+     * @param s The input this stream should view.
+     * @param c The position of this stream's cursor in the input.
+     * @param l The end of this stream's visible segment.
+     * @param ctx The ParseContext this stream shares with the stream it was moved from.
      */
-    private Stream(String s, int c, int l) {
-        string = s;
+    private Stream(Source s, int c, int l, ParseContext ctx) {
+        source = s;
         cursor = c;
-        length = l;
+        limit = l;
+        end = s.available(l);
+        context = ctx;
     }
     /**
      * Visible constructor. Creates a brand new stream from the input string.
      * @param s The string this stream should store.
      */
     Stream(String s) {
-        string = s;
-        cursor = 0;
-        length = s.length();
+        this(s, null);
+    }
+    /**
+     * Visible constructor. Creates a brand new stream from the input string, belonging to the given run.
+     * @param s The string this stream should store.
+     * @param ctx The ParseContext of the run this stream is parsed in.
+     */
+    Stream(String s, ParseContext ctx) {
+        this(Source.of(s), 0, s.length(), ctx);
+    }
+    /**
+     * Visible constructor. Creates a brand new stream over all of the given input, belonging to the given run.
+     * @param s The input this stream should view.
+     * @param ctx The ParseContext of the run this stream is parsed in.
+     */
+    Stream(Source s, ParseContext ctx) {
+        this(s, 0, UNBOUNDED, ctx);
     }
 
     /**
      * Getter for the length of the current stream.
+     * Over a Source that is read lazily, this reads the rest of the input; see atEnd() and window().
      * @return length of this Stream's visible segment.
      */
-    int length() {
-        return length;
+    @Override
+    public int length() {
+        return (end >= 0 ? end : source.fill(limit)) - cursor;
+    }
+
+    /**
+     * Whether this Stream's visible segment is empty. Reads at most one character of the input.
+     * @return True if there are no characters left in this Stream.
+     */
+    boolean atEnd() {
+        return !has(cursor);
+    }
+
+    /**
+     * Whether a position of the input is in this Stream's visible segment, reading up to it if necessary.
+     * @param position A position in the input, at or after this Stream's cursor.
+     * @return True if there is a visible character at the position.
+     */
+    private boolean has(int position) {
+        if (context != null) {
+            context.examine(position);
+        }
+        if (end >= 0) {
+            return position < end;
+        }
+        return position < limit && source.fill(position + 1) > position;
+    }
+
+    /**
+     * Gets a character of this Stream's visible segment.
+     * @param index The index of the character, relative to this Stream's cursor.
+     * @return The character at the given index.
+     */
+    @Override
+    public char charAt(int index) {
+        int position = cursor + index;
+        if (index < 0 || !has(position)) {
+            throw new IndexOutOfBoundsException("Index out of range");
+        }
+        return source.charAt(position);
+    }
+
+    /**
+     * Gets a view of part of this Stream's visible segment. Does not copy the underlying input.
+     * @param start Starting index (inclusive) of the view.
+     * @param end Ending index (exclusive) of the view.
+     * @return A sliced Stream.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return slice(start, end);
+    }
+
+    /**
+     * Getter for the position of this Stream's cursor in the underlying input.
+     * @return The position of this Stream's visible segment in the underlying input.
+     */
+    int cursor() {
+        return cursor;
+    }
+
+    /**
+     * Getter for the ParseContext of the run this Stream belongs to.
+     * @return The ParseContext of this Stream, or null if it was not created by ParserCombinator.run().
+     */
+    ParseContext getContext() {
+        return context;
+    }
+
+    /**
+     * Getter for the input underlying this Stream.
+     * @return The Source this Stream is a view of.
+     */
+    Source getSource() {
+        return source;
+    }
+
+    /**
+     * Gets a Stream in the same position that does not belong to any run,
+     * so that Failures on it are reported as they are rather than through the run's ParseContext.
+     * @return A copy of this Stream without a ParseContext.
+     */
+    Stream detach() {
+        return new Stream(source, cursor, limit, null);
+    }
+
+    /**
+     * Gets a Stream whose visible segment is at most the given number of characters from the start of this one,
+     * reading that many characters of the input if they have not been read yet.
+     * Over input that is entirely available, this is the Stream itself. Matching a regex against a window
+     * and widening it while the Matcher hits its end (see Matcher.hitEnd()) bounds how much input is read.
+     *
+     * @param size The largest length of the window.
+     * @return A window at the start of this Stream.
+     */
+    Stream window(int size) {
+        if (source.isComplete()) {
+            return this;
+        }
+        int stop = (int) Math.min((long) cursor + size, limit);
+        return new Stream(source, cursor, source.fill(stop), context);
+    }
+
+    /**
+     * Compares the start of this Stream's visible segment to a string.
+     * Reads at most as many characters of the input as the string has.
+     *
+     * @param str The string to compare to.
+     * @return The index of the first character of str that is not matched by this Stream, or -1 if all of them are.
+     */
+    int mismatch(String str) {
+        for (int i = 0; i < str.length(); i++) {
+            int position = cursor + i;
+            if (!has(position) || source.charAt(position) != str.charAt(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Describes the position of this Stream's cursor in the underlying input, for error messages.
+     * @return The line and column of this Stream's first character, both counted from 1.
+     */
+    String position() {
+        return source.position(cursor);
     }
 
     /**
@@ -49,17 +205,18 @@ class Stream {
      */
     @Override
     public String toString() {
-        if (length < 0) {throw new IllegalStateException("Stream length is negative."); }
-        return string.substring(cursor, cursor + length);
+        int stop = source.fill(limit);
+        if (stop < cursor) {throw new IllegalStateException("Stream length is negative."); }
+        return source.substring(cursor, stop);
     }
 
     /**
      * Gets the first character of this Stream's visible segment.
      * @return The first character of this Stream.
      */
-    String head() {
-        if (length <= 0) { throw new IllegalStateException("Stream is empty."); }
-        return ((Character) string.charAt(cursor)).toString();
+    char head() {
+        if (atEnd()) { throw new IllegalStateException("Stream is empty."); }
+        return source.charAt(cursor);
     }
 
     /**
@@ -71,19 +228,21 @@ class Stream {
      * @return Reference to a moved Stream.
      */
     Stream move(int distance) {
-        return new Stream(string, cursor + distance, length - distance);
+        return new Stream(source, cursor + distance, limit, context);
     }
 
     /**
-     * Convenience method. Equivalent to the String class .substring(start, stop) method. Currently unused.
+     * Convenience method. Equivalent to the String class .substring(start, stop) method. Used by subSequence().
      * @param start Starting index (inclusive) of the slice.
      * @param stop Ending index (exclusive) of the slice.
      * @return Reference to a sliced Stream.
      */
     Stream slice(int start, int stop) {
         if (stop < start) { throw new IllegalArgumentException("stop < start"); }
-        if (start < 0 || stop > length) { throw new IllegalArgumentException("Index out of range"); }
-        return new Stream(string, cursor + start, stop - start);
+        if (start < 0 || source.fill(cursor + stop) < cursor + stop || cursor + stop > limit) {
+            throw new IllegalArgumentException("Index out of range");
+        }
+        return new Stream(source, cursor + start, cursor + stop, context);
     }
 
     /**
@@ -93,6 +252,6 @@ class Stream {
      */
     Stream slice(int start) {
         if (start < 0) {throw new IllegalArgumentException("Index out of range"); }
-        return new Stream(string, cursor + start, length - start);
+        return new Stream(source, cursor + start, limit, context);
     }
 }
@@ -15,13 +15,41 @@ class Symbol {
         /** Stores the value of nonterminal symbols. */
         NONTERMINAL,
         /** Stores terminal symbols. */
-        VALUE
+        VALUE,
+        /** Stores the value produced by a semantic action. Only appears in runs with semantic actions. */
+        SEMANTIC,
+        /** Stands for a whole subtree of a previous ParseTree, with its markers. Only appears in reparses. */
+        SUBTREE
+    }
+
+    /** The shared child and parent markers. */
+    private static final Symbol CHILD = marker(SymbolType.CHILD_MARKER);
+    private static final Symbol PARENT = marker(SymbolType.PARENT_MARKER);
+    /** Shared terminal Symbols for single ASCII characters. Symbols are never modified, so they can be reused. */
+    private static final Symbol[] ASCII = new Symbol[128];
+    static {
+        for (char c = 0; c < ASCII.length; c++) {
+            ASCII[c] = value(String.valueOf(c));
+            ASCII[c].verbatim = true;
+        }
     }
 
     /** The type of this Symbol. */
     private SymbolType type;
-    /** The value of this Symbol. Only used for Value and Nonterminal Symbols. */
+    /** The value of this Symbol. Only used for Value and Nonterminal Symbols. Null until first needed for spans of the input. */
     private String value;
+    /** For Value Symbols that are spans of the input, the input their value is copied from when it is first needed. */
+    private Source source;
+    /** Whether the value of this Symbol is exactly the text of the input it was produced from. See Parser.literal(). */
+    private boolean verbatim;
+    /** The value produced by a semantic action, or the reused subtree. Only used for Semantic and Subtree Symbols. */
+    private Object semanticValue;
+    /** The position in the input where the text this Symbol was produced from starts, or -1 if unknown. */
+    private int start = -1;
+    /** The position in the input just after the text this Symbol was produced from, or -1 if unknown. */
+    private int end = -1;
+    /** For nonterminals, the farthest position the parse had examined when the rule matched, or -1 if unknown. See ParseContext.examine(). */
+    private int reach = -1;
 
     /** Private constructor to prevent creation of Symbols in this way. All Symbols should be created from the static factories. */
     private Symbol() {}
@@ -42,15 +70,92 @@ class Symbol {
         if (!(type == SymbolType.VALUE || type == SymbolType.NONTERMINAL)) {
             throw new IllegalStateException("Can't get value of a marker Symbol.");
         }
+        if (value == null) {
+            // Strings are immutable, so a race between threads only copies the text twice
+            value = source.substring(start, end);
+        }
+        return value;
+    }
+
+    /**
+     * Gets the value of this Symbol without copying it out of the input.
+     * @return This Symbol's value, or null if it is a span of the input whose text has not been copied yet.
+     */
+    String getStoredValue() {
         return value;
     }
 
+    /**
+     * Whether the value of this Symbol is exactly the text of the input it was produced from,
+     * as it is for Symbols made by terminal Parsers that match their input.
+     * @return True if this is a verbatim Value Symbol.
+     */
+    boolean isVerbatim() {
+        return verbatim;
+    }
+
+    /**
+     * Gets the length of the value of this Symbol without copying it out of the input.
+     * @return The length of this Symbol's value.
+     */
+    int length() {
+        return value != null ? value.length() : end - start;
+    }
+
+    /**
+     * Gets the value produced by the semantic action that made this Symbol.
+     * If this symbol is not of type Semantic, an exception is thrown.
+     * @return This Symbol's semantic value.
+     */
+    Object getSemanticValue() {
+        if (type != SymbolType.SEMANTIC) {
+            throw new IllegalStateException("Can't get semantic value of a non-semantic Symbol.");
+        }
+        return semanticValue;
+    }
+
+    /**
+     * Gets the subtree of a previous parse that this Symbol stands for.
+     * If this symbol is not of type Subtree, an exception is thrown.
+     * @return This Symbol's subtree.
+     */
+    ParseTree.Subtree getSubtree() {
+        if (type != SymbolType.SUBTREE) {
+            throw new IllegalStateException("Can't get subtree of a non-subtree Symbol.");
+        }
+        return (ParseTree.Subtree) semanticValue;
+    }
+
+    /**
+     * Getter for start.
+     * @return The position in the input where this Symbol's text starts, or -1 if unknown.
+     */
+    int getStart() {
+        return start;
+    }
+
+    /**
+     * Getter for end.
+     * @return The position in the input just after this Symbol's text, or -1 if unknown.
+     */
+    int getEnd() {
+        return end;
+    }
+
+    /**
+     * Getter for reach.
+     * @return For nonterminals, the farthest position examined by the parse when the rule matched, or -1 if unknown.
+     */
+    int getReach() {
+        return reach;
+    }
+
     /**
      * Asserts that this Symbol has a value. If the assertion fails, an exception is thrown with the given error message.
      * @param e The error message to use in case of failure.
      */
     void assertValue(String e) {
-        if (!(type == SymbolType.VALUE || type == SymbolType.NONTERMINAL)) {
+        if (!(type == SymbolType.VALUE || type == SymbolType.NONTERMINAL || type == SymbolType.SUBTREE)) {
             throw new IllegalStateException(e);
         }
     }
@@ -67,22 +172,26 @@ class Symbol {
             case CHILD_MARKER: return "(";
             case PARENT_MARKER: return ")";
             case NONTERMINAL:
-            case VALUE: return value;
+            case VALUE: return getValue();
+            case SEMANTIC:
+            case SUBTREE: return String.valueOf(semanticValue);
         }
         return "UntypedSymbol";
     }
 
-    /** Static factory method to make child markers. */
+    /** Static factory method to make child markers. Markers carry no value, so the same Symbol is always returned. */
     static Symbol childMarker() {
-        Symbol ret = new Symbol();
-        ret.type = SymbolType.CHILD_MARKER;
-        return ret;
+        return CHILD;
     }
 
-    /** Static factory method to make parent markers. */
+    /** Static factory method to make parent markers. Markers carry no value, so the same Symbol is always returned. */
     static Symbol parentMarker() {
+        return PARENT;
+    }
+
+    private static Symbol marker(SymbolType markerType) {
         Symbol ret = new Symbol();
-        ret.type = SymbolType.PARENT_MARKER;
+        ret.type = markerType;
         return ret;
     }
 
@@ -94,6 +203,24 @@ class Symbol {
         return ret;
     }
 
+    /** Static factory method to make nonterminal value Symbols that span the given range of the input. */
+    static Symbol nonterminal(String v, int start, int end) {
+        Symbol ret = nonterminal(v);
+        ret.start = start;
+        ret.end = end;
+        return ret;
+    }
+
+    /**
+     * Static factory method to make nonterminal value Symbols that span the given range of the input,
+     * and whose rule examined no input past the given position.
+     */
+    static Symbol nonterminal(String v, int start, int end, int reach) {
+        Symbol ret = nonterminal(v, start, end);
+        ret.reach = reach;
+        return ret;
+    }
+
     /** Static factory method to make terminal value Symbols. */
     static Symbol value(String v) {
         Symbol ret = new Symbol();
@@ -101,4 +228,64 @@ class Symbol {
         ret.value = v;
         return ret;
     }
+
+    /** Static factory method to make terminal value Symbols that span the given range of the input. */
+    static Symbol value(String v, int start, int end) {
+        Symbol ret = value(v);
+        ret.start = start;
+        ret.end = end;
+        return ret;
+    }
+
+    /** Static factory method to make verbatim terminal value Symbols for strings matched at the given position of the input. */
+    static Symbol verbatim(String v, int start) {
+        Symbol ret = value(v, start, start + v.length());
+        ret.verbatim = true;
+        return ret;
+    }
+
+    /**
+     * Static factory method to make verbatim terminal value Symbols for the given range of the input.
+     * If the whole input is available, the text is not copied out of it until the value is needed.
+     * Otherwise the input may be released before then, so it is copied immediately.
+     */
+    static Symbol span(Source source, int start, int end) {
+        Symbol ret = source.isComplete() ? value(null, start, end) : value(source.substring(start, end), start, end);
+        ret.source = source;
+        ret.verbatim = true;
+        return ret;
+    }
+
+    /** Static factory method to make Symbols holding the value of a semantic action, produced from the given range of the input. */
+    static Symbol semantic(Object v, int start, int end) {
+        Symbol ret = new Symbol();
+        ret.type = SymbolType.SEMANTIC;
+        ret.semanticValue = v;
+        ret.start = start;
+        ret.end = end;
+        return ret;
+    }
+
+    /** Static factory method to make Symbols standing for a subtree of a previous parse, which spans the given range of the input. */
+    static Symbol subtree(ParseTree.Subtree subtree, int start, int end) {
+        Symbol ret = new Symbol();
+        ret.type = SymbolType.SUBTREE;
+        ret.semanticValue = subtree;
+        ret.start = start;
+        ret.end = end;
+        return ret;
+    }
+
+    /**
+     * Static factory method to make verbatim single-character terminal value Symbols for characters matched in the input.
+     * Does not allocate for ASCII characters.
+     */
+    static Symbol value(char c) {
+        if (c < ASCII.length) {
+            return ASCII[c];
+        }
+        Symbol ret = value(String.valueOf(c));
+        ret.verbatim = true;
+        return ret;
+    }
 }
@@ -1,5 +1,9 @@
 import Lithp.LithpEvaluator;
+import Lithp.LithpValue;
 import ParserCombinator.*;
+
+import java.text.ParseException;
+import java.util.List;
 import java.util.Scanner;
 
 /**
@@ -11,15 +15,9 @@ import java.util.Scanner;
 public class REPL {
     public static void main(String[] args) {
         LithpEvaluator evaluator = new LithpEvaluator();
-        ParserCombinator lithp = new ParserCombinator(
-                "<number> ::= /-?[0-9]+/\n" +
-                        "<symbol> ::= /[a-zA-Z0-9_+\\-*\\/\\\\=<>?~!@#$%^&|]+/\n" +
-                        "<ws>i ::= /\\s/*\n" +
-                        "<comment>i ::= /;.*?\\n/\n" +
-                        "<expr> ::= <number> <ws> | <symbol> <ws> | <comment>* <sexpr> <ws> | <qexpr> <ws>\n" +
-                        "<sexpr> ::= '('i <ws> <expr>* ')'i\n" +
-                        "<qexpr> ::= \"'(\"i <ws> <expr>* ')'i\n" +
-                        "<lithp> ::= <expr>");
+        ParserCombinator lithp = new ParserCombinator(LithpValue.GRAMMAR);
+        // read LithpValues directly while parsing instead of building a ParseTree
+        LithpValue.addReadActions(lithp);
         String code;
         Scanner in = new Scanner(System.in);
 
@@ -29,8 +27,9 @@ public class REPL {
             System.out.print("Lithp> ");
 
             code = in.nextLine();
-            int missingParens;
-            while ((missingParens = missingParens(code)) > 0) {
+            // count parens as lines arrive, rather than recounting everything entered so far
+            int missingParens = missingParens(code);
+            while (missingParens > 0) {
                 System.out.print(">>>... ");
                 String more = in.nextLine();
                 if (more.length() == 0) {
@@ -40,15 +39,18 @@ public class REPL {
                     }
                 } else {
                     code += more;
+                    missingParens += missingParens(more);
                 }
             }
-            ParseTree parseTree = lithp.run(code);
-            if (!parseTree.assertSuccess()) {
-                System.out.println("Couldn't parse that input: " + parseTree.toString().substring(2));
+            List<Object> forms;
+            try {
+                forms = lithp.runActions(code);
+            } catch (ParseException e) {
+                System.out.println("Couldn't parse that input: " + e.getMessage());
                 continue;
             }
             try {
-                if (evaluator.eval(parseTree) < 0) break;
+                if (evaluator.eval((LithpValue) forms.get(0)) < 0) break;
             } catch (StackOverflowError e) {
                 System.out.println("An error occured:\n" + e);
             }